@@ -10,19 +10,44 @@ import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -36,7 +61,7 @@ import java.util.TimeZone;
  * <ul>
  * <p/>
  * <li>Only one Java file</li>
- * <li>Java 5 compatible</li>
+ * <li>Java 8 compatible; VirtualThreadAsyncRunner uses virtual threads when running on Java 21 or later</li>
  * <li>Released as open source, Modified BSD licence</li>
  * <li>No fixed config files, logging, authorization etc. (Implement yourself if you need them.)</li>
  * <li>Supports parameter parsing of GET and POST methods (+ rudimentary PUT support in 1.25)</li>
@@ -83,15 +108,38 @@ public abstract class NanoHTTPD {
      * Common mime type for dynamic content: html
      */
     public static final String MIME_HTML = "text/html";
+    /**
+     * Default largest request body that is handled in memory: 64 KB, plenty for urlencoded form posts.
+     */
+    public static final int DEFAULT_MEMORY_BODY_LIMIT = 64 * 1024;
+    /**
+     * Default largest request, header and body, that the non-blocking engine buffers: 16 MB.
+     */
+    public static final int DEFAULT_MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    /**
+     * Largest body read into an array; some VMs reserve a few header words in arrays.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
     /**
      * Pseudo-Parameter to use to store the actual query string in the parameters map for later re-processing.
      */
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
-    private Set<Socket> openConnections = new HashSet<Socket>();
+    private final ConcurrentHashMap<Socket, ConnectionState> openConnections = new ConcurrentHashMap<Socket, ConnectionState>();
     private Thread myThread;
+    private Thread reaperThread;
+    /**
+     * Decides which idle connections the reaper closes.
+     */
+    private IdlePolicy idlePolicy = new DefaultIdlePolicy(SOCKET_READ_TIMEOUT);
+    /**
+     * Accepting pauses while this many connections are open; zero means no limit.
+     */
+    private volatile int maxConnections;
+    private final AtomicLong reapedConnections = new AtomicLong();
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -100,6 +148,20 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    /**
+     * Number of selector threads for the non-blocking engine; zero keeps the blocking engine.
+     */
+    private int selectorThreads;
+    private NioEventLoop[] eventLoops;
+    /**
+     * Request bodies up to this size are read into a reused buffer; larger ones into a buffer of their own,
+     * or, for multipart and PUT uploads, through a temporary file.
+     */
+    private int memoryBodyLimit = DEFAULT_MEMORY_BODY_LIMIT;
+    /**
+     * Larger requests are refused by the non-blocking engine, which holds each request whole in memory.
+     */
+    private int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
 
     /**
      * Constructs an HTTP server on given port.
@@ -151,6 +213,10 @@ public abstract class NanoHTTPD {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
+        if (selectorThreads > 0) {
+            startNonBlocking();
+            return;
+        }
         myServerSocket = new ServerSocket();
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
 
@@ -159,43 +225,147 @@ public abstract class NanoHTTPD {
             public void run() {
                 do {
                     try {
+                        awaitConnectionSlot();
                         final Socket finalAccept = myServerSocket.accept();
                         registerConnection(finalAccept);
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
-                        final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
-                                    }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
-                                }
-                            }
-                        });
+                        asyncRunner.exec(new ClientHandler(finalAccept));
+                    } catch (IOException e) {
+                    }
+                } while (!myServerSocket.isClosed());
+            }
+        });
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Main Listener");
+        myThread.start();
+        startReaper();
+    }
+
+    /**
+     * Runs a raw HTTP request through the same parsing, <code>serve()</code> and sending as a request from a
+     * socket, in the calling thread; for warming the server up before it starts.
+     *
+     * @param request the request, as it would arrive on a connection
+     * @return the response, as it would be written to the connection
+     */
+    public byte[] replay(byte[] request) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        HTTPSession session = new HTTPSession(tempFileManagerFactory.create(), new ByteArrayInputStream(request), response, InetAddress.getLoopbackAddress());
+        session.execute();
+        return response.toByteArray();
+    }
+
+    /**
+     * Runs the keep-alive loop of one connection of the blocking engine.
+     */
+    private class ClientHandler implements Rejectable {
+        private final Socket acceptSocket;
+
+        ClientHandler(Socket acceptSocket) {
+            this.acceptSocket = acceptSocket;
+        }
+
+        @Override
+        public void run() {
+            serve(false);
+        }
+
+        /**
+         * Serves only the first request, then closes the connection, so the listener thread is held for one
+         * request rather than a whole keep-alive life.
+         */
+        @Override
+        public void runInCaller() {
+            serve(true);
+        }
+
+        private void serve(boolean once) {
+            InputStream inputStream = null;
+            OutputStream outputStream = null;
+            try {
+                inputStream = acceptSocket.getInputStream();
+                outputStream = acceptSocket.getOutputStream();
+                TempFileManager tempFileManager = tempFileManagerFactory.create();
+                HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, acceptSocket.getInetAddress());
+                session.connection = openConnections.get(acceptSocket);
+                session.lastRequest = once;
+                do {
+                    session.execute();
+                } while (!once && !acceptSocket.isClosed());
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own SocketException
+                // to break the  "keep alive" loop above.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                safeClose(outputStream);
+                safeClose(inputStream);
+                safeClose(acceptSocket);
+                unRegisterConnection(acceptSocket);
+            }
+        }
+
+        /**
+         * The request has not been read yet at this point, so the overload response gets no session.
+         */
+        @Override
+        public void reject(boolean respond) {
+            try {
+                if (respond) {
+                    Response r = overloadResponse(null);
+                    r.addHeader("Connection", "close");
+                    r.send(acceptSocket.getOutputStream());
+                }
+            } catch (IOException ignored) {
+            } finally {
+                safeClose(acceptSocket);
+                unRegisterConnection(acceptSocket);
+            }
+        }
+    }
+
+    /**
+     * Starts the non-blocking engine: one listener thread accepts connections and hands them to the
+     * selector threads, which read and frame requests and pass only complete ones to the {@link AsyncRunner}.
+     */
+    private void startNonBlocking() throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        myServerSocket = serverChannel.socket();
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+
+        eventLoops = new NioEventLoop[selectorThreads];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop();
+            Thread t = new Thread(eventLoops[i]);
+            t.setDaemon(true);
+            t.setName("NanoHttpd Selector (#" + (i + 1) + ")");
+            t.start();
+        }
+
+        myThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int next = 0;
+                do {
+                    try {
+                        awaitConnectionSlot();
+                        SocketChannel channel = serverChannel.accept();
+                        channel.configureBlocking(false);
+                        registerConnection(channel.socket());
+                        eventLoops[next++ % eventLoops.length].register(channel);
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
+                for (NioEventLoop loop : eventLoops) {
+                    loop.shutdown();
+                }
             }
         });
         myThread.setDaemon(true);
         myThread.setName("NanoHttpd Main Listener");
         myThread.start();
+        startReaper();
     }
 
     /**
@@ -204,6 +374,9 @@ public abstract class NanoHTTPD {
     public void stop() {
         try {
             safeClose(myServerSocket);
+            if (reaperThread != null) {
+                reaperThread.interrupt();
+            }
             closeAllConnections();
             if (myThread != null) {
                 myThread.join();
@@ -213,13 +386,64 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Waits while {@link #setMaxConnections(int) the connection limit} is reached, leaving further clients
+     * in the listen backlog until a connection closes.
+     */
+    private void awaitConnectionSlot() {
+        while (maxConnections > 0 && openConnections.size() >= maxConnections && !myServerSocket.isClosed()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts the thread that closes idle connections chosen by the {@link IdlePolicy}, once a second.
+     */
+    private void startReaper() {
+        reaperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!myServerSocket.isClosed()) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    reapIdleConnections();
+                }
+            }
+        });
+        reaperThread.setDaemon(true);
+        reaperThread.setName("NanoHttpd Idle Reaper");
+        reaperThread.start();
+    }
+
+    private void reapIdleConnections() {
+        long now = System.currentTimeMillis();
+        int open = openConnections.size();
+        for (ConnectionState connection : openConnections.values()) {
+            if (!connection.isBusy() && idlePolicy.shouldClose(connection, now - connection.getLastActivity(), open)) {
+                connection.close();
+                reapedConnections.incrementAndGet();
+                open--;
+            }
+        }
+    }
+
     /**
      * Registers that a new connection has been set up.
+     * <p/>
+     * <p>The connection registry is concurrent, so this takes no lock on the server; connection threads
+     * (virtual ones in particular) never contend or pin here.</p>
      *
      * @param socket the {@link Socket} for the connection.
      */
-    public synchronized void registerConnection(Socket socket) {
-        openConnections.add(socket);
+    public void registerConnection(Socket socket) {
+        openConnections.put(socket, new ConnectionState(socket));
     }
 
     /**
@@ -228,17 +452,51 @@ public abstract class NanoHTTPD {
      * @param socket
      *            the {@link Socket} for the connection.
      */
-    public synchronized void unRegisterConnection(Socket socket) {
+    public void unRegisterConnection(Socket socket) {
         openConnections.remove(socket);
     }
 
     /**
      * Forcibly closes all connections that are open.
      */
-    public synchronized void closeAllConnections() {
-        for (Socket socket : openConnections) {
-            safeClose(socket);
+    public void closeAllConnections() {
+        for (ConnectionState connection : openConnections.values()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int getOpenConnectionCount() {
+        return openConnections.size();
+    }
+
+    /**
+     * @return the number of open connections with a request in progress.
+     */
+    public int getBusyConnectionCount() {
+        int busy = 0;
+        for (ConnectionState connection : openConnections.values()) {
+            if (connection.isBusy()) {
+                busy++;
+            }
         }
+        return busy;
+    }
+
+    /**
+     * @return the number of open connections waiting for their next request.
+     */
+    public int getIdleConnectionCount() {
+        return Math.max(0, getOpenConnectionCount() - getBusyConnectionCount());
+    }
+
+    /**
+     * @return the number of connections closed by the idle reaper since the server was created.
+     */
+    public long getReapedConnectionCount() {
+        return reapedConnections.get();
     }
 
     public final int getListeningPort() {
@@ -298,6 +556,55 @@ public abstract class NanoHTTPD {
         return serve(session.getUri(), method, session.getHeaders(), parms, files);
     }
 
+    /**
+     * Override this instead of {@link #serve(IHTTPSession)} to compute responses off the connection's thread.
+     * The response is sent when the returned future completes; with the non-blocking engine the worker
+     * thread is free again as soon as this method returns.
+     * <p/>
+     * <p>The session (its parameters, headers and body) stays valid until the future completes, since the
+     * connection reads no further request before then. Completing the future exceptionally is treated
+     * like an exception thrown from <code>serve()</code>; a {@link ResponseException} becomes an error
+     * response.</p>
+     * <p/>
+     * <p>(By default, this completes immediately with the result of <code>serve()</code>.)</p>
+     *
+     * @param session The HTTP session
+     * @return the future HTTP response
+     */
+    public CompletableFuture<Response> serveAsync(IHTTPSession session) {
+        return CompletableFuture.completedFuture(serve(session));
+    }
+
+    /**
+     * Called after each response has been sent (with the non-blocking engine: rendered and handed to the selector
+     * thread), including error responses; for measuring the server. Runs on the thread that sent it, so it must
+     * be quick. All times are {@link System#nanoTime()} values.
+     *
+     * @param session       The HTTP session
+     * @param response      the response sent
+     * @param receivedNanos when the request arrived: with the blocking engine, when the first bytes of its header
+     *                      were read; with the non-blocking engine, when it had been fully received
+     * @param parsedNanos   when the request header had been parsed
+     * @param sendNanos     when sending started, after <code>serve()</code>
+     * @param sentNanos     when sending finished
+     */
+    protected void onResponseSent(IHTTPSession session, Response response, long receivedNanos, long parsedNanos, long sendNanos, long sentNanos) {
+    }
+
+    /**
+     * Override this to customize what a request gets when the {@link AsyncRunner} turns it away because the
+     * server is saturated (see {@link BoundedAsyncRunner}).
+     * <p/>
+     * <p>This runs on the thread that handed the work over (the listener or a selector thread), so it must
+     * be quick and must not block.</p>
+     *
+     * @param session The HTTP session, or null when the request had not been read yet (blocking engine).
+     * @return HTTP response; by default a 503.
+     */
+    protected Response overloadResponse(IHTTPSession session) {
+        return new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server is overloaded.");
+    }
+
     /**
      * Decode percent encoded <code>String</code> values.
      *
@@ -368,6 +675,64 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * Sets the largest request body that <code>parseBody()</code> reads into a buffer reused across requests.
+     * Larger multipart and PUT uploads go through a temporary file from the {@link TempFileManager}; other
+     * larger bodies, such as big form posts, are read into a buffer of their own.
+     *
+     * @param memoryBodyLimit size in bytes; 0 sends every upload through a temporary file.
+     */
+    public void setMemoryBodyLimit(int memoryBodyLimit) {
+        this.memoryBodyLimit = memoryBodyLimit;
+    }
+
+    /**
+     * Sets the largest request, header and body, that the non-blocking engine accepts. A request announcing a
+     * larger <code>content-length</code> is answered with a 413 and its connection closed, before its body is
+     * read.
+     *
+     * @param maxRequestSize size in bytes
+     */
+    public void setMaxRequestSize(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Selects the non-blocking connection engine. Connections are then multiplexed over the given number of
+     * selector threads, and the {@link AsyncRunner} only receives complete requests instead of whole
+     * keep-alive connections. Must be called before {@link #start()}.
+     * <p/>
+     * The non-blocking engine buffers each request whole before handing it over, so bodies are bounded by
+     * {@link #setMaxRequestSize(int)} rather than spilled to temporary files; large uploads need the blocking
+     * engine.
+     *
+     * @param selectorThreads number of selector threads; zero (the default) keeps the thread-per-connection engine.
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Limits the number of open connections. Once the limit is reached, new connections are not accepted
+     * (they wait in the listen backlog) until another one closes.
+     *
+     * @param maxConnections the limit; zero (the default) means no limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the policy the idle reaper uses to close keep-alive connections that are waiting for a request.
+     * The default closes them after {@link #SOCKET_READ_TIMEOUT}. The blocking engine's socket read timeout
+     * applies on top of it.
+     *
+     * @param idlePolicy the new policy.
+     */
+    public void setIdlePolicy(IdlePolicy idlePolicy) {
+        this.idlePolicy = idlePolicy;
+    }
+
     // ------------------------------------------------------------------------------- //
     //
     // Temp file handling strategy.
@@ -397,6 +762,17 @@ public abstract class NanoHTTPD {
             }
             return null;
         }
+
+        static Method lookup(byte[] buf, int start, int end) {
+            for (Method m : Method.values()) {
+                if (m.lowerCaseName.length() == end - start && equalsIgnoreCase(buf, start, m.lowerCaseName)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        private final String lowerCaseName = name().toLowerCase(Locale.US);
     }
 
     /**
@@ -406,6 +782,135 @@ public abstract class NanoHTTPD {
         void exec(Runnable code);
     }
 
+    /**
+     * Work handed to an {@link AsyncRunner} (a connection, or a single request with the non-blocking
+     * engine) that the runner may turn away instead of running.
+     */
+    public interface Rejectable extends Runnable {
+        /**
+         * Gives up on the work without serving it.
+         *
+         * @param respond whether to answer with {@link NanoHTTPD#overloadResponse(IHTTPSession)} first,
+         *                rather than just closing the connection.
+         */
+        void reject(boolean respond);
+
+        /**
+         * Serves the work on the thread that handed it over, holding that thread for at most one request.
+         */
+        void runInCaller();
+    }
+
+    /**
+     * Decides which idle connections get closed. Consulted once a second for every open connection that
+     * has no request in progress.
+     */
+    public interface IdlePolicy {
+        /**
+         * @param connection      the idle connection.
+         * @param idleMillis      time since the connection last read or wrote anything.
+         * @param openConnections number of connections currently open.
+         * @return whether to close the connection.
+         */
+        boolean shouldClose(ConnectionState connection, long idleMillis, int openConnections);
+    }
+
+    /**
+     * Closes connections idle for longer than a timeout, and, once more than a given number of connections
+     * are open, those idle for longer than a shorter one, so idle keep-alive clients make room under load.
+     */
+    public static class DefaultIdlePolicy implements IdlePolicy {
+        private final long idleTimeout;
+        private final int pressureConnections;
+        private final long pressureIdleTimeout;
+
+        public DefaultIdlePolicy(long idleTimeout) {
+            this(idleTimeout, Integer.MAX_VALUE, idleTimeout);
+        }
+
+        public DefaultIdlePolicy(long idleTimeout, int pressureConnections, long pressureIdleTimeout) {
+            this.idleTimeout = idleTimeout;
+            this.pressureConnections = pressureConnections;
+            this.pressureIdleTimeout = pressureIdleTimeout;
+        }
+
+        @Override
+        public boolean shouldClose(ConnectionState connection, long idleMillis, int openConnections) {
+            return idleMillis > (openConnections > pressureConnections ? pressureIdleTimeout : idleTimeout);
+        }
+    }
+
+    /**
+     * What the server knows about an open connection. Updated by the thread serving the connection and read
+     * by the idle reaper and the monitoring getters.
+     */
+    public static final class ConnectionState {
+        private final Socket socket;
+        private final long openedAt = System.currentTimeMillis();
+        private volatile Closeable closer;
+        private volatile boolean busy;
+        private volatile long lastActivity = openedAt;
+        private volatile int requestCount;
+
+        ConnectionState(Socket socket) {
+            this.socket = socket;
+        }
+
+        void requestStarted() {
+            busy = true;
+            requestCount++;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        void requestFinished() {
+            busy = false;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Replaces closing the socket directly, for engines that must close on their own thread.
+         */
+        void setCloser(Closeable closer) {
+            this.closer = closer;
+        }
+
+        public InetAddress getRemoteAddress() {
+            return socket.getInetAddress();
+        }
+
+        public long getOpenedAt() {
+            return openedAt;
+        }
+
+        public boolean isBusy() {
+            return busy;
+        }
+
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        public int getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * Closes the connection; the thread serving it notices and unregisters it.
+         */
+        public void close() {
+            Closeable closer = this.closer;
+            if (closer != null) {
+                safeClose(closer);
+            } else {
+                safeClose(socket);
+            }
+        }
+    }
+
     /**
      * Factory to create temp file managers.
      */
@@ -462,28 +967,170 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Default strategy for creating and cleaning up temporary files.
+     * Threading strategy that runs every connection (or request, with the non-blocking engine) on its own
+     * virtual thread.
      * <p/>
-     * <p></p>This class stores its files in the standard location (that is,
-     * wherever <code>java.io.tmpdir</code> points to).  Files are added
-     * to an internal list, and deleted when no longer needed (that is,
-     * when <code>clear()</code> is invoked at the end of processing a
-     * request).</p>
+     * <p>Connection threads spend nearly all their time blocked on socket reads or in slow
+     * <code>serve()</code> implementations; as virtual threads they unmount while blocked, so idle
+     * keep-alive connections cost heap rather than platform threads. The session path takes no monitors
+     * around blocking calls, which would pin the carrier thread. On runtimes without virtual threads
+     * (before Java 21) this falls back to daemon platform threads, like {@link DefaultAsyncRunner}.</p>
      */
-    public static class DefaultTempFileManager implements TempFileManager {
-        private final String tmpdir;
-        private final List<TempFile> tempFiles;
+    public static class VirtualThreadAsyncRunner implements AsyncRunner {
+        private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
 
-        public DefaultTempFileManager() {
-            tmpdir = System.getProperty("java.io.tmpdir");
-            tempFiles = new ArrayList<TempFile>();
-        }
+        private final AtomicLong requestCount = new AtomicLong();
 
-        @Override
-        public TempFile createTempFile() throws Exception {
-            DefaultTempFile tempFile = new DefaultTempFile(tmpdir);
-            tempFiles.add(tempFile);
-            return tempFile;
+        /**
+         * @return whether this runtime has virtual threads, i.e. whether this runner actually uses them.
+         */
+        public static boolean isSupported() {
+            return VIRTUAL_THREAD_FACTORY != null;
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            long count = requestCount.incrementAndGet();
+            Thread t = VIRTUAL_THREAD_FACTORY != null ? VIRTUAL_THREAD_FACTORY.newThread(code) : new Thread(code);
+            t.setDaemon(true);
+            t.setName("NanoHttpd Request Processor (#" + count + ")");
+            t.start();
+        }
+
+        /**
+         * Looks up <code>Thread.ofVirtual().factory()</code> reflectively, so this compiles and runs on older runtimes.
+         */
+        private static ThreadFactory virtualThreadFactory() {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Threading strategy with a fixed number of worker threads and a bounded queue.
+     * <p/>
+     * <p>When every worker is busy and the queue is full, new work is rejected right away according to
+     * the {@link RejectionPolicy}, so an overloaded server answers late arrivals quickly instead of letting
+     * every request time out. With the blocking engine a worker is held by a connection for its whole
+     * keep-alive life; with the non-blocking engine (see {@link NanoHTTPD#setSelectorThreads(int)}) a
+     * worker is only held for one request.</p>
+     */
+    public static class BoundedAsyncRunner implements AsyncRunner {
+        /**
+         * What to do with work that finds the pool and the queue full.
+         */
+        public enum RejectionPolicy {
+            /**
+             * Answer with {@link NanoHTTPD#overloadResponse(IHTTPSession)}.
+             */
+            RESPOND,
+            /**
+             * Close the connection without an answer.
+             */
+            CLOSE,
+            /**
+             * Run the work on the handing-over thread, which throttles accepting. A connection of the
+             * blocking engine then gets only its first request served and is closed after it, so the
+             * listener thread is not held for the connection's whole keep-alive life.
+             */
+            CALLER_RUNS
+        }
+
+        private final ThreadPoolExecutor executor;
+        private final RejectionPolicy rejectionPolicy;
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private final AtomicLong requestCount = new AtomicLong();
+
+        public BoundedAsyncRunner(int poolSize, int queueDepth, RejectionPolicy rejectionPolicy) {
+            this.rejectionPolicy = rejectionPolicy;
+            BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<Runnable>(queueDepth) : new SynchronousQueue<Runnable>();
+            executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable code) {
+                    Thread t = new Thread(code);
+                    t.setDaemon(true);
+                    t.setName("NanoHttpd Request Processor (#" + requestCount.incrementAndGet() + ")");
+                    return t;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable code, ThreadPoolExecutor executor) {
+                    reject(code);
+                }
+            });
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            executor.execute(code);
+        }
+
+        private void reject(Runnable code) {
+            rejectedCount.incrementAndGet();
+            if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !executor.isShutdown()) {
+                if (code instanceof Rejectable) {
+                    ((Rejectable) code).runInCaller();
+                } else {
+                    code.run();
+                }
+            } else if (code instanceof Rejectable) {
+                ((Rejectable) code).reject(rejectionPolicy == RejectionPolicy.RESPOND);
+            }
+        }
+
+        /**
+         * @return number of connections or requests waiting for a worker.
+         */
+        public int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+
+        /**
+         * @return number of workers currently running a connection or request.
+         */
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        /**
+         * @return number of connections or requests turned away since start.
+         */
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        public void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Default strategy for creating and cleaning up temporary files.
+     * <p/>
+     * <p></p>This class stores its files in the standard location (that is,
+     * wherever <code>java.io.tmpdir</code> points to).  Files are added
+     * to an internal list, and deleted when no longer needed (that is,
+     * when <code>clear()</code> is invoked at the end of processing a
+     * request).</p>
+     */
+    public static class DefaultTempFileManager implements TempFileManager {
+        private final String tmpdir;
+        private final List<TempFile> tempFiles;
+
+        public DefaultTempFileManager() {
+            tmpdir = System.getProperty("java.io.tmpdir");
+            tempFiles = new ArrayList<TempFile>();
+        }
+
+        @Override
+        public TempFile createTempFile() throws Exception {
+            DefaultTempFile tempFile = new DefaultTempFile(tmpdir);
+            tempFiles.add(tempFile);
+            return tempFile;
         }
 
         @Override
@@ -581,11 +1228,16 @@ public abstract class NanoHTTPD {
         public Response(IStatus status, String mimeType, String txt) {
             this.status = status;
             this.mimeType = mimeType;
-            try {
-                this.data = txt != null ? new ByteArrayInputStream(txt.getBytes("UTF-8")) : null;
-            } catch (java.io.UnsupportedEncodingException uee) {
-                uee.printStackTrace();
-            }
+            this.data = txt != null ? new ByteArrayData(txt.getBytes(UTF8)) : null;
+        }
+
+        /**
+         * Constructor for a body that is already encoded; such responses take the fast path of {@link #send(OutputStream)}.
+         */
+        public Response(IStatus status, String mimeType, byte[] data, int offset, int length) {
+            this.status = status;
+            this.mimeType = mimeType;
+            this.data = new ByteArrayData(data, offset, length);
         }
 
         /**
@@ -603,9 +1255,11 @@ public abstract class NanoHTTPD {
          * Sends given response to the socket.
          */
         protected void send(OutputStream outputStream) {
+            if (data instanceof ByteArrayData && !(chunkedTransfer && requestMethod != Method.HEAD)) {
+                sendBytes(outputStream, (ByteArrayData) data);
+                return;
+            }
             String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
 
             try {
                 if (status == null) {
@@ -619,7 +1273,7 @@ public abstract class NanoHTTPD {
                 }
 
                 if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+                    pw.print(new String(DateHeader.line(), UTF8));
                 }
 
                 if (header != null) {
@@ -647,6 +1301,66 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Fast path for bodies already in memory: the head is rendered from pre-encoded pieces into a reusable
+         * buffer, and head and body leave in a single write (a gathering write with the non-blocking engine,
+         * which then sends the body array without copying it).
+         */
+        private void sendBytes(OutputStream outputStream, ByteArrayData body) {
+            if (status == null) {
+                throw new Error("sendResponse(): Status can't be null.");
+            }
+            int length = body.available();
+            HeadBuffer head = HEAD_BUFFERS.get();
+            head.reset();
+            head.append(status instanceof Status ? ((Status) status).statusLine : ("HTTP/1.1 " + status.getDescription() + " \r\n").getBytes(UTF8));
+            if (mimeType != null) {
+                head.append(CONTENT_TYPE).append(mimeType).append(CRLF);
+            }
+            boolean hasDate = false;
+            boolean hasConnection = false;
+            boolean hasContentLength = false;
+            for (Map.Entry<String, String> entry : header.entrySet()) {
+                String key = entry.getKey();
+                hasDate |= key.equalsIgnoreCase("date");
+                hasConnection |= key.equalsIgnoreCase("connection");
+                hasContentLength |= key.equalsIgnoreCase("content-length");
+                head.append(key).append(COLON).append(entry.getValue()).append(CRLF);
+            }
+            if (!hasDate) {
+                head.append(DateHeader.line());
+            }
+            if (!hasConnection) {
+                head.append(CONNECTION_KEEP_ALIVE);
+            }
+            if (!hasContentLength) {
+                head.append(CONTENT_LENGTH).append(length).append(CRLF);
+            }
+            head.append(CRLF);
+            if (requestMethod == Method.HEAD) {
+                length = 0;
+            }
+
+            try {
+                if (outputStream instanceof GatheringOutput) {
+                    ((GatheringOutput) outputStream).write(new ByteBuffer[] {ByteBuffer.wrap(head.toByteArray()),
+                        ByteBuffer.wrap(body.array(), body.position(), length)}, body);
+                    return;
+                }
+                if (head.size() + length <= HeadBuffer.MAX_COPY) {
+                    head.append(body.array(), body.position(), length);
+                    outputStream.write(head.array(), 0, head.size());
+                } else {
+                    outputStream.write(head.array(), 0, head.size());
+                    outputStream.write(body.array(), body.position(), length);
+                }
+                outputStream.flush();
+            } catch (IOException ioe) {
+                // Couldn't write? No can do.
+            }
+            safeClose(body);
+        }
+
         protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
             if (!headerAlreadySent(header, "content-length")) {
                 pw.print("Content-Length: "+ size +"\r\n");
@@ -679,6 +1393,12 @@ public abstract class NanoHTTPD {
                 outputStream.write(String.format("%x\r\n", read).getBytes());
                 outputStream.write(buff, 0, read);
                 outputStream.write(CRLF);
+                // each chunk goes out as soon as it is read, so that slowly produced data is streamed
+                if (outputStream instanceof GatheringOutput) {
+                    ((GatheringOutput) outputStream).writeNow();
+                } else {
+                    outputStream.flush();
+                }
             }
             outputStream.write(String.format("0\r\n\r\n").getBytes());
         }
@@ -702,6 +1422,110 @@ public abstract class NanoHTTPD {
             return status;
         }
 
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] COLON = {':', ' '};
+        private static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes(UTF8);
+        private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(UTF8);
+        private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(UTF8);
+
+        /**
+         * Head buffers, one per sending thread, reused for every response that thread sends.
+         */
+        private static final ThreadLocal<HeadBuffer> HEAD_BUFFERS = new ThreadLocal<HeadBuffer>() {
+            @Override
+            protected HeadBuffer initialValue() {
+                return new HeadBuffer();
+            }
+        };
+
+        /**
+         * Response data that is a byte array. Responses with such data are sent on the fast path.
+         */
+        public static class ByteArrayData extends ByteArrayInputStream {
+            public ByteArrayData(byte[] buf) {
+                super(buf);
+            }
+
+            public ByteArrayData(byte[] buf, int offset, int length) {
+                super(buf, offset, length);
+            }
+
+            byte[] array() {
+                return buf;
+            }
+
+            int position() {
+                return pos;
+            }
+        }
+
+        /**
+         * Growable buffer that the response head is rendered into.
+         */
+        private static final class HeadBuffer {
+            /**
+             * Bodies are copied behind the head, for a single write, up to this total size.
+             */
+            static final int MAX_COPY = 16 * 1024;
+
+            private byte[] buf = new byte[1024];
+            private int count;
+
+            void reset() {
+                count = 0;
+                if (buf.length > MAX_COPY) {
+                    buf = new byte[1024];
+                }
+            }
+
+            HeadBuffer append(byte[] b) {
+                return append(b, 0, b.length);
+            }
+
+            HeadBuffer append(byte[] b, int off, int len) {
+                ensure(len);
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+                return this;
+            }
+
+            HeadBuffer append(String str) {
+                int length = str.length();
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    char c = str.charAt(i);
+                    if (c >= 0x80) {
+                        return append(str.getBytes(UTF8));
+                    }
+                    buf[count + i] = (byte) c;
+                }
+                count += length;
+                return this;
+            }
+
+            HeadBuffer append(long value) {
+                return append(Long.toString(value));
+            }
+
+            private void ensure(int extra) {
+                if (count + extra > buf.length) {
+                    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+                }
+            }
+
+            byte[] array() {
+                return buf;
+            }
+
+            int size() {
+                return count;
+            }
+
+            byte[] toByteArray() {
+                return Arrays.copyOf(buf, count);
+            }
+        }
+
         public void setStatus(Status status) {
             this.status = status;
         }
@@ -745,14 +1569,17 @@ public abstract class NanoHTTPD {
         public enum Status implements IStatus {
             SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                 "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
-                "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), PAYLOAD_TOO_LARGE(413, "Payload Too Large"), RANGE_NOT_SATISFIABLE(416,
+                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503,
+                "Service Unavailable");
             private final int requestStatus;
             private final String description;
+            private final byte[] statusLine;
 
             Status(int requestStatus, String description) {
                 this.requestStatus = requestStatus;
                 this.description = description;
+                this.statusLine = ("HTTP/1.1 " + requestStatus + " " + description + " \r\n").getBytes(UTF8);
             }
 
             @Override
@@ -767,6 +1594,49 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * The Date header line, formatted at most once per second and shared by all responses.
+     */
+    private static final class DateHeader {
+        private static volatile DateHeader current = new DateHeader(0);
+
+        private final long second;
+        private final byte[] line;
+
+        private DateHeader(long second) {
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            this.second = second;
+            this.line = ("Date: " + gmtFrmt.format(new Date(second * 1000)) + "\r\n").getBytes(UTF8);
+        }
+
+        static byte[] line() {
+            long now = System.currentTimeMillis() / 1000;
+            DateHeader date = current;
+            if (date.second != now) {
+                date = new DateHeader(now);
+                current = date;
+            }
+            return date.line;
+        }
+    }
+
+    /**
+     * An output that takes a whole response as buffers and writes them later with one gathering write.
+     */
+    private interface GatheringOutput {
+        /**
+         * @param buffers the response; the caller must not touch them afterwards.
+         * @param onWritten closed once the buffers have been written.
+         */
+        void write(ByteBuffer[] buffers, Closeable onWritten);
+
+        /**
+         * Writes what the response has so far right away, rather than once it is complete.
+         */
+        void writeNow();
+    }
+
     public static final class ResponseException extends Exception {
 
         private final Response.Status status;
@@ -824,6 +1694,11 @@ public abstract class NanoHTTPD {
          * @arg files - map to modify
          */
         void parseBody(Map<String, String> files) throws IOException, ResponseException;
+
+        /**
+         * @return when the request arrived, as a {@link System#nanoTime()} value; see {@link NanoHTTPD#onResponseSent}
+         */
+        long getReceivedNanos();
     }
 
     protected class HTTPSession implements IHTTPSession {
@@ -831,168 +1706,332 @@ public abstract class NanoHTTPD {
         private final TempFileManager tempFileManager;
         private final OutputStream outputStream;
         private PushbackInputStream inputStream;
+        /**
+         * Header buffer, reused by every request of the connection.
+         */
+        private final byte[] buf = new byte[BUFSIZE];
+        /**
+         * Body buffer for bodies below the memory body limit, reused by every request of the connection.
+         */
+        private byte[] bodyBuf = new byte[0];
         private int splitbyte;
         private int rlen;
         private String uri;
         private Method method;
-        private Map<String, String> parms;
-        private Map<String, String> headers;
+        private final ParameterMap parms = new ParameterMap();
+        private final Map<String, String> headers = new HeaderMap();
+        private final String remoteIp;
         private CookieHandler cookies;
-        private String queryParameterString;
+        /**
+         * Raw query string, made into a String only when asked for.
+         */
+        private int queryStart;
+        private int queryEnd = -1;
+        /**
+         * Set when the request was turned away, so it gets {@link NanoHTTPD#overloadResponse(IHTTPSession)}.
+         */
+        private boolean overloaded;
+        /**
+         * Set when the connection is closed after this request, so the response says so.
+         */
+        private boolean lastRequest;
+        /**
+         * Registry entry of the connection, kept up to date by the blocking engine; the non-blocking engine
+         * tracks its connections itself.
+         */
+        private ConnectionState connection;
+        /**
+         * Whether serve() read the request body, through parseBody() or the input stream.
+         */
+        private boolean bodyRead;
+        /**
+         * {@link System#nanoTime()} when the request arrived (the non-blocking engine sets it once the request has
+         * been framed), and when its header had been parsed.
+         */
+        private long receivedNanos;
+        private long parsedNanos;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
             this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
             this.outputStream = outputStream;
+            this.remoteIp = null;
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
             this.tempFileManager = tempFileManager;
             this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
             this.outputStream = outputStream;
-            String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
-
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+            this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
         }
 
+        /**
+         * Reads and serves one request, waiting until the response is sent. The header buffer and the
+         * parameter and header maps belong to the connection and are reused by its next request, so they must
+         * not be kept after the response is sent.
+         */
         @Override
         public void execute() throws IOException {
             try {
-                // Read the first 8192 bytes.
-                // The full header should fit in here.
-                // Apache's default header limit is 8KB.
-                // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
-                splitbyte = 0;
-                rlen = 0;
-                {
-                    int read = -1;
-                    try {
-                        read = inputStream.read(buf, 0, BUFSIZE);
-                    } catch (Exception e) {
-                        safeClose(inputStream);
-                        safeClose(outputStream);
-                        throw new SocketException("NanoHttpd Shutdown");
-                    }
-                    if (read == -1) {
-                        // socket was been closed
-                        safeClose(inputStream);
-                        safeClose(outputStream);
-                        throw new SocketException("NanoHttpd Shutdown");
-                    }
-                    while (read > 0) {
-                        rlen += read;
-                        splitbyte = findHeaderEnd(buf, rlen);
-                        if (splitbyte > 0)
-                            break;
-                        read = inputStream.read(buf, rlen, BUFSIZE - rlen);
-                    }
+                executeAsync().get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
                 }
+                throw (RuntimeException) cause;
+            }
+        }
 
-                if (splitbyte < rlen) {
-                    inputStream.unread(buf, splitbyte, rlen - splitbyte);
+        /**
+         * Reads one request and hands it to {@link NanoHTTPD#serveAsync(IHTTPSession)}.
+         *
+         * @return completes once the response has been sent; completes exceptionally when the connection is
+         *         to be closed, like {@link #execute()} throwing.
+         */
+        CompletableFuture<Void> executeAsync() {
+            final CompletableFuture<Void> done = new CompletableFuture<Void>();
+            parsedNanos = 0;
+            CompletableFuture<Response> response;
+            try {
+                readRequest();
+                response = overloaded ? CompletableFuture.completedFuture(overloadResponse(this)) : serveAsync(this);
+            } catch (Throwable t) {
+                respond(null, t, done);
+                return done;
+            }
+            if (response == null) {
+                respond(null, null, done);
+                return done;
+            }
+            response.whenComplete(new BiConsumer<Response, Throwable>() {
+                @Override
+                public void accept(Response r, Throwable failure) {
+                    respond(r, failure, done);
                 }
-
-                parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
+            });
+            return done;
+        }
+
+        private void readRequest() throws IOException, ResponseException {
+            // Read the first 8192 bytes.
+            // The full header should fit in here.
+            // Apache's default header limit is 8KB.
+            // Do NOT assume that a single read will get the entire header at once!
+            splitbyte = 0;
+            rlen = 0;
+            {
+                int read = -1;
+                try {
+                    // A pipelined request may already be waiting in the pushback buffer; take just that,
+                    // since asking for more would block on the socket until the read timeout.
+                    int available = inputStream.available();
+                    read = inputStream.read(buf, 0, available > 0 ? Math.min(available, BUFSIZE) : BUFSIZE);
+                } catch (Exception e) {
+                    safeClose(inputStream);
+                    safeClose(outputStream);
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
+                if (read == -1) {
+                    // socket was been closed
+                    safeClose(inputStream);
+                    safeClose(outputStream);
+                    throw new SocketException("NanoHttpd Shutdown");
                 }
+                // the first bytes are in: the request has started arriving
+                if (receivedNanos == 0) {
+                    receivedNanos = System.nanoTime();
+                }
+                while (read > 0) {
+                    rlen += read;
+                    splitbyte = findHeaderEnd(buf, rlen);
+                    if (splitbyte > 0)
+                        break;
+                    read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                }
+            }
+            if (connection != null) {
+                connection.requestStarted();
+            }
 
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
+            if (splitbyte < rlen) {
+                inputStream.unread(buf, splitbyte, rlen - splitbyte);
+            }
 
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
+            parms.clear();
+            headers.clear();
+            if (remoteIp != null) {
+                headers.put("remote-addr", remoteIp);
+                headers.put("http-client-ip", remoteIp);
+            }
+            method = null;
+            uri = null;
+            queryEnd = -1;
+            cookies = null;
+            bodyRead = false;
+
+            // Decode the header into parms and header java properties
+            decodeHeader(buf, splitbyte > 0 ? splitbyte : rlen);
+            parsedNanos = System.nanoTime();
+
+            if (method == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+            }
+        }
 
-                method = Method.lookup(pre.get("method"));
-                if (method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+        /**
+         * Sends the response, or the error response for the failure, then finishes the request.
+         */
+        private void respond(Response r, Throwable failure, CompletableFuture<Void> done) {
+            try {
+                try {
+                    if (failure != null) {
+                        rethrow(failure);
+                    }
+                    if (r == null) {
+                        throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+                    }
+                    if (cookies != null) {
+                        cookies.unloadQueue(r);
+                    }
+                    r.setRequestMethod(method);
+                    if (lastRequest) {
+                        r.addHeader("Connection", "close");
+                    }
+                    send(r);
+                    if (!bodyRead) {
+                        skipBody();
+                    }
+                } catch (SocketException e) {
+                    // throw it out to close socket object (finalAccept)
+                    throw e;
+                } catch (SocketTimeoutException ste) {
+                    throw ste;
+                } catch (IOException ioe) {
+                    Response error = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                    send(error);
+                    safeClose(outputStream);
+                } catch (ResponseException re) {
+                    Response error = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                    send(error);
+                    safeClose(outputStream);
+                } finally {
+                    receivedNanos = 0;
+                    tempFileManager.clear();
+                    if (connection != null) {
+                        connection.requestFinished();
+                    }
                 }
+                done.complete(null);
+            } catch (Throwable t) {
+                done.completeExceptionally(t);
+            }
+        }
 
-                uri = pre.get("uri");
+        private void send(Response r) {
+            long sendStart = System.nanoTime();
+            r.send(outputStream);
+            onResponseSent(this, r, receivedNanos, parsedNanos != 0 ? parsedNanos : sendStart, sendStart, System.nanoTime());
+        }
 
-                cookies = new CookieHandler(headers);
+        private void rethrow(Throwable failure) throws IOException, ResponseException {
+            if ((failure instanceof CompletionException || failure instanceof ExecutionException) && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof ResponseException) {
+                throw (ResponseException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new RuntimeException(failure);
+        }
 
-                // Ok, now do the serve()
-                Response r = serve(this);
-                if (r == null) {
-                    throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
-                } else {
-                    cookies.unloadQueue(r);
-                    r.setRequestMethod(method);
-                    r.send(outputStream);
+        /**
+         * Discards a request body that serve() did not read, so that it is not taken for the next request.
+         */
+        private void skipBody() throws IOException {
+            long remaining;
+            try {
+                remaining = Long.parseLong(headers.get("content-length").trim());
+            } catch (RuntimeException notDeclared) {
+                return;
+            }
+            while (remaining > 0) {
+                long skipped = inputStream.skip(remaining);
+                if (skipped <= 0) {
+                    break;
                 }
-            } catch (SocketException e) {
-                // throw it out to close socket object (finalAccept)
-                throw e;
-            } catch (SocketTimeoutException ste) {
-                throw ste;
-            } catch (IOException ioe) {
-                Response r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-                r.send(outputStream);
-                safeClose(outputStream);
-            } catch (ResponseException re) {
-                Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
-                r.send(outputStream);
-                safeClose(outputStream);
-            } finally {
-                tempFileManager.clear();
+                remaining -= skipped;
             }
         }
 
+        /**
+         * Reads the body and decodes it. Bodies up to the memory body limit (see
+         * {@link NanoHTTPD#setMemoryBodyLimit(int)}) are read into a buffer kept by the connection and
+         * decoded there; larger ones are spooled to a temporary file and memory-mapped.
+         */
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+            bodyRead = true;
             RandomAccessFile randomAccessFile = null;
-            BufferedReader in = null;
             try {
-
-                randomAccessFile = getTmpBucket();
-
-                long size;
+                // Without a content-length there is no body; whatever follows the header is the next
+                // pipelined request.
+                long size = 0;
                 if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
-                } else if (splitbyte < rlen) {
-                    size = rlen - splitbyte;
-                } else {
-                    size = 0;
+                    size = Long.parseLong(headers.get("content-length").trim());
                 }
 
-                // Now read all the body and write it to f
-                byte[] buf = new byte[512];
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, (int)Math.min(size, 512));
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
+                String contentType = "";
+                String contentTypeHeader = headers.get("content-type");
+
+                StringTokenizer st = null;
+                if (contentTypeHeader != null) {
+                    st = new StringTokenizer(contentTypeHeader, ",; ");
+                    if (st.hasMoreTokens()) {
+                        contentType = st.nextToken();
                     }
                 }
+                boolean multipart = "multipart/form-data".equalsIgnoreCase(contentType);
 
-                // Get the raw body as a byte []
-                ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
-
-                // Create a BufferedReader for easily reading it as string.
-                InputStream bin = new FileInputStream(randomAccessFile.getFD());
-                in = new BufferedReader(new InputStreamReader(bin));
+                ByteBuffer fbuf;
+                if (size <= memoryBodyLimit) {
+                    if (bodyBuf.length < size) {
+                        bodyBuf = new byte[(int) size];
+                    }
+                    fbuf = ByteBuffer.wrap(bodyBuf, 0, readFully(bodyBuf, (int) size)).slice();
+                } else if (!multipart && !Method.PUT.equals(method) && size <= MAX_ARRAY_SIZE) {
+                    // A large form post is still decoded from memory, in a buffer that grows as the body
+                    // arrives rather than trusting the declared length up front; only uploads go to a file.
+                    fbuf = readGrowing((int) size);
+                } else {
+                    // Now read all the body and write it to f, reusing the header buffer which is done with
+                    randomAccessFile = getTmpBucket();
+                    while (size > 0) {
+                        int read = inputStream.read(buf, 0, (int) Math.min(size, BUFSIZE));
+                        if (read < 0) {
+                            break;
+                        }
+                        size -= read;
+                        randomAccessFile.write(buf, 0, read);
+                    }
+
+                    // Get the raw body as a byte []
+                    fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                }
 
                 // If the method is POST, there may be parameters
                 // in data section, too, read it:
                 if (Method.POST.equals(method)) {
-                    String contentType = "";
-                    String contentTypeHeader = headers.get("content-type");
-
-                    StringTokenizer st = null;
-                    if (contentTypeHeader != null) {
-                        st = new StringTokenizer(contentTypeHeader, ",; ");
-                        if (st.hasMoreTokens()) {
-                            contentType = st.nextToken();
-                        }
-                    }
-
-                    if ("multipart/form-data".equalsIgnoreCase(contentType)) {
+                    if (multipart) {
                         // Handle multipart/form-data
                         if (!st.hasMoreTokens()) {
                             throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
@@ -1005,22 +2044,15 @@ public abstract class NanoHTTPD {
                             boundary = boundary.substring(1, boundary.length() - 1);
                         }
 
+                        // Create a BufferedReader for easily reading it as string.
+                        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteBufferInputStream(fbuf.duplicate())));
                         decodeMultipartData(boundary, fbuf, in, parms, files);
-                    } else {
-                        String postLine = "";
-                        StringBuilder postLineBuffer = new StringBuilder();
-                        char pbuf[] = new char[512];
-                        int read = in.read(pbuf);
-                        while (read >= 0 && !postLine.endsWith("\r\n")) {
-                            postLine = String.valueOf(pbuf, 0, read);
-                            postLineBuffer.append(postLine);
-                            read = in.read(pbuf);
-                        }
-                        postLine = postLineBuffer.toString().trim();
+                    } else if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
                         // Handle application/x-www-form-urlencoded
-                        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
-                            decodeParms(postLine, parms);
-                        } else if (postLine.length() != 0) {
+                        decodeParms(fbuf);
+                    } else {
+                        String postLine = decodeBody(fbuf).trim();
+                        if (postLine.length() != 0) {
                             // Special case for raw POST data => create a special files entry "postData" with raw content data
                             files.put("postData", postLine);
                         }
@@ -1030,62 +2062,87 @@ public abstract class NanoHTTPD {
                 }
             } finally {
                 safeClose(randomAccessFile);
-                safeClose(in);
             }
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Reads up to <code>size</code> body bytes into <code>dst</code>.
+         *
+         * @return number of bytes read, less than <code>size</code> only if the stream ended.
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-            throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
+        private int readFully(byte[] dst, int size) throws IOException {
+            int n = 0;
+            while (n < size) {
+                int read = inputStream.read(dst, n, size - n);
+                if (read < 0) {
+                    break;
                 }
+                n += read;
+            }
+            return n;
+        }
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+        /**
+         * Reads a body larger than the memory body limit into a buffer doubled as needed, up to <code>size</code>.
+         */
+        private ByteBuffer readGrowing(int size) throws IOException {
+            byte[] body = new byte[Math.min(size, 2 * Math.max(memoryBodyLimit, BUFSIZE))];
+            int n = 0;
+            while (n < size) {
+                if (n == body.length) {
+                    body = Arrays.copyOf(body, (int) Math.min(size, 2L * body.length));
+                }
+                int read = inputStream.read(body, n, body.length - n);
+                if (read < 0) {
+                    break;
                 }
+                n += read;
+            }
+            return ByteBuffer.wrap(body, 0, n);
+        }
 
-                pre.put("method", st.nextToken());
+        private String decodeBody(ByteBuffer fbuf) {
+            if (fbuf.hasArray()) {
+                return new String(fbuf.array(), fbuf.arrayOffset() + fbuf.position(), fbuf.remaining(), UTF8);
+            }
+            return UTF8.decode(fbuf.duplicate()).toString();
+        }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
+        /**
+         * Decodes the request line and headers straight from the header bytes: sets the method and URI and
+         * loads the parms and headers maps, without intermediate readers, tokenizers or line strings.
+         */
+        private void decodeHeader(byte[] buf, int len) throws ResponseException {
+            int lineEnd = indexOf(buf, '\n', 0, len);
 
-                String uri = st.nextToken();
+            int start = skipWhitespace(buf, 0, lineEnd);
+            int end = skipToken(buf, start, lineEnd);
+            if (start == end) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
+            method = Method.lookup(buf, start, end);
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
+            start = skipWhitespace(buf, end, lineEnd);
+            end = skipToken(buf, start, lineEnd);
+            if (start == end) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
 
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
-                    }
-                }
+            // Decode parameters from the URI
+            int qmi = indexOf(buf, '?', start, end);
+            if (qmi < end) {
+                decodeParms(buf, qmi + 1, end);
+            }
+            uri = decodePercent(new String(buf, start, qmi - start, UTF8));
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+            // If there's another token, it's protocol version,
+            // followed by HTTP headers. Ignore version but parse headers.
+            // NOTE: this now forces header names lowercase since they are
+            // case insensitive and vary by client.
+            if (skipWhitespace(buf, end, lineEnd) == lineEnd) {
+                return;
             }
+            decodeHeaderLines(buf, lineEnd + 1, len, headers);
         }
 
         /**
@@ -1162,20 +2219,6 @@ public abstract class NanoHTTPD {
             }
         }
 
-        /**
-         * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
-         */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
-            while (splitbyte + 3 < rlen) {
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
-                }
-                splitbyte++;
-            }
-            return 0;
-        }
-
         /**
          * Find the byte positions where multipart boundaries start.
          */
@@ -1254,25 +2297,23 @@ public abstract class NanoHTTPD {
 
         /**
          * Decodes parameters in percent-encoded URI-format ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
-         * adds them to given Map. NOTE: this doesn't support multiple identical keys due to the simplicity of Map.
+         * adds them to the parms. NOTE: this doesn't support multiple identical keys due to the simplicity of Map.
          */
-        private void decodeParms(String parms, Map<String, String> p) {
-            if (parms == null) {
-                queryParameterString = "";
-                return;
-            }
-
-            queryParameterString = parms;
-            StringTokenizer st = new StringTokenizer(parms, "&");
-            while (st.hasMoreTokens()) {
-                String e = st.nextToken();
-                int sep = e.indexOf('=');
-                if (sep >= 0) {
-                    p.put(decodePercent(e.substring(0, sep)).trim(),
-                        decodePercent(e.substring(sep + 1)));
-                } else {
-                    p.put(decodePercent(e).trim(), "");
-                }
+        private void decodeParms(byte[] src, int from, int to) {
+            int start = skipWhitespace(src, from, to);
+            int end = trimEnd(src, start, to);
+            int offset = parms.addForm(src, start, end);
+            queryStart = offset;
+            queryEnd = offset + end - start;
+        }
+
+        private void decodeParms(ByteBuffer fbuf) {
+            if (fbuf.hasArray()) {
+                decodeParms(fbuf.array(), fbuf.arrayOffset() + fbuf.position(), fbuf.arrayOffset() + fbuf.limit());
+            } else {
+                byte[] body = new byte[fbuf.remaining()];
+                fbuf.duplicate().get(body);
+                decodeParms(body, 0, body.length);
             }
         }
 
@@ -1281,8 +2322,12 @@ public abstract class NanoHTTPD {
             return parms;
         }
 
+        /**
+         * @return the raw (still percent-encoded) parameters of the request: the query string, or the form
+         *         body once <code>parseBody()</code> has decoded one.
+         */
         public String getQueryParameterString() {
-            return queryParameterString;
+            return queryEnd < 0 ? null : parms.rawString(queryStart, queryEnd);
         }
 
         @Override
@@ -1302,15 +2347,925 @@ public abstract class NanoHTTPD {
 
         @Override
         public final InputStream getInputStream() {
+            bodyRead = true;
             return inputStream;
         }
 
+        @Override
+        public final long getReceivedNanos() {
+            return receivedNanos;
+        }
+
+        /**
+         * The cookie jar is only built for requests that ask for it.
+         */
         @Override
         public CookieHandler getCookies() {
+            if (cookies == null) {
+                cookies = new CookieHandler(headers);
+            }
             return cookies;
         }
     }
 
+    /**
+     * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
+     */
+    private static int findHeaderEnd(final byte[] buf, int rlen) {
+        int splitbyte = 0;
+        while (splitbyte + 3 < rlen) {
+            if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
+                return splitbyte + 4;
+            }
+            splitbyte++;
+        }
+        return 0;
+    }
+
+    /**
+     * @return index of the first occurrence of <code>b</code> in <code>buf[from..to)</code>, or <code>to</code>.
+     */
+    private static int indexOf(byte[] buf, char b, int from, int to) {
+        while (from < to && buf[from] != b) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    private static int skipWhitespace(byte[] buf, int from, int to) {
+        while (from < to && isWhitespace(buf[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int skipToken(byte[] buf, int from, int to) {
+        while (from < to && !isWhitespace(buf[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] buf, int from, int to) {
+        while (to > from && isWhitespace(buf[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Header names seen on nearly every request, handed out without allocating a new string.
+     */
+    private static final String[] COMMON_HEADER_NAMES = {"host", "user-agent", "accept", "accept-encoding", "accept-language",
+        "accept-charset", "connection", "keep-alive", "content-length", "content-type", "transfer-encoding", "expect", "cookie",
+        "referer", "origin", "cache-control", "pragma", "authorization", "if-none-match", "if-modified-since", "range",
+        "x-forwarded-for", "x-real-ip", "te", "dnt", "upgrade-insecure-requests"};
+
+    /**
+     * @return the lower case header name in <code>buf[start..end)</code>, interned if it is a common one.
+     */
+    private static String headerName(byte[] buf, int start, int end) {
+        int length = end - start;
+        for (String name : COMMON_HEADER_NAMES) {
+            if (name.length() == length && equalsIgnoreCase(buf, start, name)) {
+                return name;
+            }
+        }
+        return new String(buf, start, length, UTF8).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Compares bytes against a lower case ASCII string, ignoring the case of the bytes.
+     */
+    private static boolean equalsIgnoreCase(byte[] buf, int start, String lowerCase) {
+        for (int i = 0; i < lowerCase.length(); i++) {
+            int b = buf[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the header lines from {@code start}, up to the empty line or {@code len}, into the map.
+     */
+    private static void decodeHeaderLines(byte[] buf, int start, int len, Map<String, String> headers) {
+        for (int lineEnd; start < len; start = lineEnd + 1) {
+            lineEnd = indexOf(buf, '\n', start, len);
+            int contentEnd = trimEnd(buf, start, lineEnd);
+            if (contentEnd == start) {
+                break;
+            }
+            int p = indexOf(buf, ':', start, contentEnd);
+            if (p < contentEnd) {
+                int nameStart = skipWhitespace(buf, start, p);
+                int valueStart = skipWhitespace(buf, p + 1, contentEnd);
+                headers.put(headerName(buf, nameStart, trimEnd(buf, nameStart, p)),
+                    new String(buf, valueStart, contentEnd - valueStart, UTF8));
+            }
+        }
+    }
+
+    /**
+     * Header map that keeps names lower case; lookups ignore case, so "Content-Length" finds "content-length".
+     */
+    private static final class HeaderMap extends HashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String get(Object key) {
+            return super.get(key instanceof String ? toLowerCase((String) key) : key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return super.containsKey(key instanceof String ? toLowerCase((String) key) : key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return super.put(key == null ? null : toLowerCase(key), value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return super.remove(key instanceof String ? toLowerCase((String) key) : key);
+        }
+
+        private static String toLowerCase(String key) {
+            for (int i = 0; i < key.length(); i++) {
+                if (Character.isUpperCase(key.charAt(i))) {
+                    return key.toLowerCase(Locale.US);
+                }
+            }
+            return key;
+        }
+    }
+
+    private static final byte[] CONTENT_LENGTH_LINE = "\ncontent-length:".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Finds the value of the content-length header in a raw request header, without decoding the header in
+     * the usual case; a header written any other way (such as with whitespace before the colon) is found by
+     * decoding all the header lines.
+     *
+     * @return the declared body length, 0 if there is none, or -1 if it is malformed.
+     */
+    private static long findContentLength(final byte[] buf, int headerEnd) {
+        final byte[] name = CONTENT_LENGTH_LINE;
+        for (int i = 0; i + name.length < headerEnd; i++) {
+            int j = 0;
+            while (j < name.length && Character.toLowerCase(buf[i + j]) == name[j]) {
+                j++;
+            }
+            if (j < name.length) {
+                continue;
+            }
+            int p = i + j;
+            while (p < headerEnd && buf[p] == ' ') {
+                p++;
+            }
+            long length = 0;
+            int digits = 0;
+            while (p < headerEnd && buf[p] >= '0' && buf[p] <= '9' && digits < 18) {
+                length = length * 10 + (buf[p++] - '0');
+                digits++;
+            }
+            return digits == 0 ? -1 : length;
+        }
+        Map<String, String> headers = new HeaderMap();
+        decodeHeaderLines(buf, indexOf(buf, '\n', 0, headerEnd) + 1, headerEnd, headers);
+        String value = headers.get("content-length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            long length = Long.parseLong(value.trim());
+            return length < 0 ? -1 : length;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // ------------------------------------------------------------------------------- //
+    //
+    // Non-blocking connection engine.
+    //
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * A selector thread of the non-blocking engine. It owns the connections registered with it; every
+     * state change of those connections happens on this thread, other threads hand work over through
+     * {@link #execute(Runnable)}.
+     */
+    private class NioEventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean running = true;
+
+        NioEventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        NioConnection connection = new NioConnection(NioEventLoop.this, channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        safeClose(channel);
+                        unRegisterConnection(channel.socket());
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            // one connection's failure must not take the loop, and the others, down
+                            t.printStackTrace();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                safeClose(selector);
+            }
+        }
+    }
+
+    /**
+     * A connection of the non-blocking engine. Bytes are accumulated until a full request (header and
+     * <code>content-length</code> bytes of body) is buffered; that request is then handed to the
+     * {@link AsyncRunner}, one at a time, so responses go out in request order.
+     */
+    private class NioConnection {
+        private static final int NEED_MORE = -1;
+        private static final int MALFORMED = -2;
+        private static final int TOO_LARGE = -3;
+        private static final int MAX_QUEUED_BUFFERS = 16;
+
+        private final NioEventLoop loop;
+        private final SocketChannel channel;
+        private final InetAddress remoteAddress;
+        private final Deque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        /**
+         * Closed once everything in {@link #out} has been written, see {@link GatheringOutput}.
+         */
+        private final List<Closeable> onWritten = new ArrayList<Closeable>();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(HTTPSession.BUFSIZE);
+        private boolean busy;
+        private boolean inputShutdown;
+        private boolean closeAfterWrite;
+        private boolean closed;
+        /**
+         * Busy from dispatch until the response has been written, so the reaper leaves it alone meanwhile.
+         */
+        private final ConnectionState state;
+        /**
+         * Reused by every request of the connection. Requests of a connection never overlap, so these are
+         * only used by one worker at a time.
+         */
+        private final RequestStream requestStream = new RequestStream();
+        private final ResponseBuffer responseBuffer = new ResponseBuffer(this);
+        private HTTPSession session;
+
+        NioConnection(NioEventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress();
+            ConnectionState registered = openConnections.get(channel.socket());
+            this.state = registered != null ? registered : new ConnectionState(channel.socket());
+            state.setCloser(new Closeable() {
+                @Override
+                public void close() {
+                    NioConnection.this.loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            NioConnection.this.close();
+                        }
+                    });
+                }
+            });
+        }
+
+        HTTPSession session() {
+            if (session == null) {
+                session = new HTTPSession(tempFileManagerFactory.create(), requestStream, responseBuffer, remoteAddress);
+            }
+            return session;
+        }
+
+        /**
+         * The next pipelined request may start while earlier responses are still queued, so that responses
+         * completing in the meantime leave together in one gathering write; but not behind a client that
+         * has stopped reading.
+         */
+        private boolean canDispatch() {
+            return !busy && !closeAfterWrite && out.size() < MAX_QUEUED_BUFFERS;
+        }
+
+        void read() throws IOException {
+            if (in.hasRemaining()) {
+                int read = channel.read(in);
+                if (read < 0) {
+                    inputShutdown = true;
+                } else if (read > 0) {
+                    state.touch();
+                }
+            }
+            process();
+        }
+
+        void write() throws IOException {
+            if (!out.isEmpty()) {
+                channel.write(out.toArray(new ByteBuffer[out.size()]));
+                state.touch();
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if (out.isEmpty()) {
+                    releaseWritten();
+                    if (!busy) {
+                        state.requestFinished();
+                    }
+                }
+            }
+            if (out.isEmpty() && closeAfterWrite) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Dispatches the next buffered request if the connection is free, then settles the interest set.
+         */
+        private void process() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (canDispatch()) {
+                int length = frameRequest();
+                if (length > 0) {
+                    dispatch(length);
+                } else if (length == MALFORMED) {
+                    refuse(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+                } else if (length == TOO_LARGE) {
+                    refuse(Response.Status.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request exceeds "
+                                    + maxRequestSize + " bytes.");
+                } else if (inputShutdown) {
+                    if (out.isEmpty()) {
+                        close();
+                        return;
+                    }
+                    closeAfterWrite = true;
+                }
+            }
+            int ops = 0;
+            if (!out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (!inputShutdown && in.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Answers with an error and closes the connection once it is written, reading nothing more.
+         */
+        private void refuse(Response.Status status, String message) throws IOException {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            new Response(status, MIME_PLAINTEXT, message).send(response);
+            out.add(ByteBuffer.wrap(response.toByteArray()));
+            closeAfterWrite = true;
+            inputShutdown = true;
+        }
+
+        /**
+         * @return the length of the complete request at the head of the input buffer, {@link #NEED_MORE} if
+         *         it has not fully arrived yet (the buffer is grown when full), {@link #MALFORMED} or
+         *         {@link #TOO_LARGE}.
+         */
+        private int frameRequest() {
+            byte[] buf = in.array();
+            int headerEnd = findHeaderEnd(buf, in.position());
+            if (headerEnd == 0) {
+                return in.position() >= HTTPSession.BUFSIZE ? MALFORMED : NEED_MORE;
+            }
+            long contentLength = findContentLength(buf, headerEnd);
+            if (contentLength < 0) {
+                return MALFORMED;
+            }
+            if (headerEnd + contentLength > maxRequestSize) {
+                return TOO_LARGE;
+            }
+            int length = (int) (headerEnd + contentLength);
+            if (in.position() < length) {
+                if (!in.hasRemaining()) {
+                    // grown as the body arrives, not to the size the client announces
+                    resize((int) Math.min(length, 2L * in.capacity()));
+                }
+                return NEED_MORE;
+            }
+            return length;
+        }
+
+        private void resize(int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            in.flip();
+            resized.put(in);
+            in = resized;
+        }
+
+        private void dispatch(int length) {
+            byte[] request = Arrays.copyOf(in.array(), length);
+            in.flip();
+            in.position(length);
+            in.compact();
+            if (in.capacity() > HTTPSession.BUFSIZE && in.position() <= HTTPSession.BUFSIZE) {
+                // a large request does not keep its buffer for the life of the connection
+                resize(HTTPSession.BUFSIZE);
+            }
+            busy = true;
+            state.requestStarted();
+            asyncRunner.exec(new NioRequest(this, request, System.nanoTime()));
+        }
+
+        /**
+         * Called from a worker thread once the response to the current request has been rendered.
+         */
+        void complete(final ByteBuffer[] response, final Closeable[] onWritten, final boolean keepAlive) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Collections.addAll(NioConnection.this.onWritten, onWritten);
+                    if (closed) {
+                        releaseWritten();
+                        return;
+                    }
+                    busy = false;
+                    Collections.addAll(out, response);
+                    closeAfterWrite |= !keepAlive;
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Called from a worker thread with the part of a response that is ready, ahead of {@link #complete}.
+         */
+        void stream(final ByteBuffer[] partial, final Closeable[] onWritten) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Collections.addAll(NioConnection.this.onWritten, onWritten);
+                    if (closed) {
+                        releaseWritten();
+                        return;
+                    }
+                    Collections.addAll(out, partial);
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        close();
+                    }
+                }
+            });
+        }
+
+        private void releaseWritten() {
+            for (Closeable closeable : onWritten) {
+                safeClose(closeable);
+            }
+            onWritten.clear();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            releaseWritten();
+            if (key != null) {
+                key.cancel();
+            }
+            safeClose(channel);
+            unRegisterConnection(channel.socket());
+        }
+    }
+
+    /**
+     * A single framed request of the non-blocking engine, run by the {@link AsyncRunner}. The request goes
+     * through the ordinary {@link HTTPSession}, so <code>serve()</code> implementations see no difference.
+     */
+    private class NioRequest implements Rejectable {
+        private final NioConnection connection;
+        private final byte[] request;
+        private final long framedNanos;
+
+        NioRequest(NioConnection connection, byte[] request, long framedNanos) {
+            this.connection = connection;
+            this.request = request;
+            this.framedNanos = framedNanos;
+        }
+
+        @Override
+        public void run() {
+            execute(false);
+        }
+
+        @Override
+        public void runInCaller() {
+            execute(false);
+        }
+
+        /**
+         * The request is already buffered, so even a turned-away request is parsed and its session handed
+         * to {@link NanoHTTPD#overloadResponse(IHTTPSession)}.
+         */
+        @Override
+        public void reject(boolean respond) {
+            if (respond) {
+                execute(true);
+            } else {
+                connection.complete(new ByteBuffer[0], new Closeable[0], false);
+            }
+        }
+
+        private void execute(boolean overloaded) {
+            connection.responseBuffer.reset();
+            try {
+                connection.requestStream.reset(request);
+                HTTPSession session = connection.session();
+                session.overloaded = overloaded;
+                session.receivedNanos = framedNanos;
+                session.executeAsync().whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void ignored, Throwable failure) {
+                        finish(failure);
+                    }
+                });
+            } catch (Exception e) {
+                finish(e);
+            }
+        }
+
+        /**
+         * Hands the rendered response to the selector thread; runs on whichever thread completed it.
+         */
+        private void finish(Throwable failure) {
+            if (failure != null && !(failure instanceof SocketException && "NanoHttpd Shutdown".equals(failure.getMessage()))) {
+                failure.printStackTrace();
+            }
+            ResponseBuffer response = connection.responseBuffer;
+            connection.complete(response.buffers(), response.onWritten(), failure == null && !response.closed);
+        }
+    }
+
+    /**
+     * Collects a rendered response; remembers whether the session asked for the connection to be closed.
+     * A streamed response is handed to the connection piece by piece instead.
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream implements GatheringOutput {
+        private final NioConnection connection;
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private final List<Closeable> onWritten = new ArrayList<Closeable>();
+        private boolean closed;
+
+        ResponseBuffer(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers, Closeable onWritten) {
+            drainBytes();
+            Collections.addAll(this.buffers, buffers);
+            this.onWritten.add(onWritten);
+        }
+
+        @Override
+        public void writeNow() {
+            drainBytes();
+            if (!buffers.isEmpty()) {
+                connection.stream(buffers.toArray(new ByteBuffer[buffers.size()]), onWritten());
+                buffers.clear();
+                onWritten.clear();
+            }
+        }
+
+        /**
+         * Bytes written as a stream become a buffer of their own, so that everything stays in order.
+         */
+        private void drainBytes() {
+            if (count > 0) {
+                buffers.add(ByteBuffer.wrap(toByteArray()));
+                super.reset();
+            }
+        }
+
+        ByteBuffer[] buffers() {
+            drainBytes();
+            return buffers.toArray(new ByteBuffer[buffers.size()]);
+        }
+
+        Closeable[] onWritten() {
+            return onWritten.toArray(new Closeable[onWritten.size()]);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            buffers.clear();
+            onWritten.clear();
+            closed = false;
+        }
+    }
+
+    /**
+     * Request parameters, decoded from urlencoded bytes in a single pass.
+     * <p/>
+     * <p>The encoded form is copied once into a buffer kept by the connection. Names are percent-decoded
+     * right away, but a value stays a byte range until it is first looked up, and is then decoded
+     * (<code>%xx</code> and <code>+</code>, as UTF-8) straight into a String. Parameters the handler never
+     * reads are never turned into Strings. Iterating the map decodes everything.</p>
+     * <p>Since a lookup may decode and so change the map, every method holds the map's lock: a session served
+     * asynchronously can have its parameters read from any thread.</p>
+     */
+    static final class ParameterMap extends AbstractMap<String, String> {
+        private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+        private final Map<String, String> decoded = new HashMap<String, String>();
+        /**
+         * Parameter name to index of its value range in {@link #ranges}.
+         */
+        private final Map<String, Integer> pending = new HashMap<String, Integer>();
+        private byte[] raw = new byte[1024];
+        private int rawLength;
+        private int[] ranges = new int[32];
+        private int rangeCount;
+        private byte[] scratch = new byte[256];
+
+        /**
+         * Adds the parameters of an urlencoded form.
+         *
+         * @return offset of the copied form in the raw buffer, see {@link #rawString(int, int)}.
+         */
+        synchronized int addForm(byte[] src, int from, int to) {
+            int offset = rawLength;
+            int length = to - from;
+            if (raw.length < rawLength + length) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + length));
+            }
+            System.arraycopy(src, from, raw, offset, length);
+            rawLength += length;
+
+            int end = offset + length;
+            for (int start = offset; start < end; start++) {
+                int tokenEnd = indexOf(raw, '&', start, end);
+                if (tokenEnd > start) {
+                    int sep = indexOf(raw, '=', start, tokenEnd);
+                    String name = decode(start, sep).trim();
+                    decoded.remove(name);
+                    if (sep < tokenEnd) {
+                        if (ranges.length < 2 * rangeCount + 2) {
+                            ranges = Arrays.copyOf(ranges, ranges.length * 2);
+                        }
+                        ranges[2 * rangeCount] = sep + 1;
+                        ranges[2 * rangeCount + 1] = tokenEnd;
+                        pending.put(name, rangeCount++);
+                    } else {
+                        pending.remove(name);
+                        decoded.put(name, "");
+                    }
+                }
+                start = tokenEnd;
+            }
+            return offset;
+        }
+
+        synchronized String rawString(int start, int end) {
+            return new String(raw, start, end - start, UTF8);
+        }
+
+        /**
+         * Percent-decodes <code>raw[start..end)</code>. A '%' that is not followed by two hex digits is kept as is.
+         */
+        private String decode(int start, int end) {
+            int i = start;
+            while (i < end && raw[i] != '%' && raw[i] != '+') {
+                i++;
+            }
+            if (i == end) {
+                return new String(raw, start, end - start, UTF8);
+            }
+            if (scratch.length < end - start) {
+                scratch = new byte[Math.max(scratch.length * 2, end - start)];
+            }
+            int n = i - start;
+            System.arraycopy(raw, start, scratch, 0, n);
+            for (; i < end; i++) {
+                byte b = raw[i];
+                if (b == '+') {
+                    b = ' ';
+                } else if (b == '%' && i + 2 < end) {
+                    int hi = Character.digit(raw[i + 1], 16);
+                    int lo = Character.digit(raw[i + 2], 16);
+                    if (hi >= 0 && lo >= 0) {
+                        b = (byte) (hi << 4 | lo);
+                        i += 2;
+                    }
+                }
+                scratch[n++] = b;
+            }
+            return new String(scratch, 0, n, UTF8);
+        }
+
+        @Override
+        public synchronized String get(Object key) {
+            String value = decoded.get(key);
+            if (value == null) {
+                Integer range = pending.remove(key);
+                if (range != null) {
+                    value = decode(ranges[2 * range], ranges[2 * range + 1]);
+                    decoded.put((String) key, value);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object key) {
+            return decoded.containsKey(key) || pending.containsKey(key);
+        }
+
+        @Override
+        public synchronized String put(String key, String value) {
+            String previous = get(key);
+            decoded.put(key, value);
+            return previous;
+        }
+
+        @Override
+        public synchronized String remove(Object key) {
+            String previous = get(key);
+            decoded.remove(key);
+            return previous;
+        }
+
+        @Override
+        public synchronized int size() {
+            return decoded.size() + pending.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            decoded.clear();
+            pending.clear();
+            rawLength = 0;
+            rangeCount = 0;
+            if (raw.length > MAX_RETAINED_BYTES) {
+                raw = new byte[1024];
+                scratch = new byte[256];
+            }
+        }
+
+        @Override
+        public synchronized Set<Entry<String, String>> entrySet() {
+            for (String name : new ArrayList<String>(pending.keySet())) {
+                get(name);
+            }
+            return decoded.entrySet();
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, which may be a memory-mapped temporary file.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Input of a non-blocking engine session: the bytes of the request being served.
+     */
+    private static class RequestStream extends InputStream {
+        private byte[] request = new byte[0];
+        private int pos;
+
+        void reset(byte[] request) {
+            this.request = request;
+            this.pos = 0;
+        }
+
+        @Override
+        public int read() {
+            return pos < request.length ? request[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= request.length) {
+                return -1;
+            }
+            int n = Math.min(len, request.length - pos);
+            System.arraycopy(request, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return request.length - pos;
+        }
+    }
+
     public static class Cookie {
         private String n, v, e;
 
@@ -0,0 +1,114 @@
+package org.trec.liveqa;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Limits the requests in flight to a host, adapting the limit as TCP does its window: additive increase, by about
+ * one per round of successful requests, and multiplicative decrease when the host shows it is overloaded (it
+ * throttles, fails, or answers much slower than usual), at most once per round trip.
+ *
+ */
+public class AimdLimiter {
+
+    public static final double DEFAULT_DECREASE_FACTOR = 0.5;
+    /**
+     * A request this many times slower than the average counts as a sign of overload.
+     */
+    public static final double DEFAULT_LATENCY_SPIKE_FACTOR = 3;
+    private static final double LATENCY_SMOOTHING = 0.05;
+    private static final int LATENCY_WARMUP_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double decreaseFactor;
+    private final double latencySpikeFactor;
+    private double limit;
+    private int inFlight;
+    private double averageLatencyNanos;
+    private int latencySamples;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    /**
+     * @param initialLimit requests in flight at first
+     * @param minLimit lowest limit
+     * @param maxLimit highest limit
+     */
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_DECREASE_FACTOR, DEFAULT_LATENCY_SPIKE_FACTOR);
+    }
+
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit, double decreaseFactor,
+                    double latencySpikeFactor) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.decreaseFactor = decreaseFactor;
+        this.latencySpikeFactor = latencySpikeFactor;
+    }
+
+    /**
+     * Waits until another request may be sent; must be followed by one of {@link #onSuccess}, {@link #onOverload}
+     * or {@link #onIgnore}.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * The request succeeded; a latency spike still counts as overload.
+     */
+    public synchronized void onSuccess(long latencyNanos) {
+        release();
+        if (latencySamples >= LATENCY_WARMUP_SAMPLES && latencyNanos > latencySpikeFactor * averageLatencyNanos) {
+            decrease();
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        averageLatencyNanos = latencySamples == 0 ? latencyNanos : averageLatencyNanos + LATENCY_SMOOTHING
+                        * (latencyNanos - averageLatencyNanos);
+        latencySamples++;
+    }
+
+    /**
+     * The host throttled the request, failed it or could not be reached.
+     */
+    public synchronized void onOverload() {
+        release();
+        decrease();
+    }
+
+    /**
+     * The request ended without telling anything about the host's load.
+     */
+    public synchronized void onIgnore() {
+        release();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Requests that were already in flight when the limit was cut report the same overload, so one cut per
+     * round trip is enough.
+     */
+    private void decrease() {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < averageLatencyNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        limit = Math.max(minLimit, limit * decreaseFactor);
+    }
+
+}
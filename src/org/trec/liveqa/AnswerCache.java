@@ -0,0 +1,190 @@
+package org.trec.liveqa;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Bounded cache of answers, looked up by question id and then by the normalized question text, so that both
+ * retried questions and questions reposted under a new id are answered again without recomputing.
+ * <p/>
+ * Eviction is segmented LRU: new entries start in a probation segment and move to the protected segment when
+ * hit again, so a burst of one-off questions cannot flush the repeated ones. Entries also expire after a fixed
+ * time. Both keys of an entry count against the size.
+ *
+ * @param <V> the cached answer type
+ */
+public class AnswerCache<V> {
+
+    private static final String QID_PREFIX = "q:";
+    private static final String TEXT_PREFIX = "t:";
+
+    private final int probationCapacity;
+    private final int protectedCapacity;
+    private final long ttlMillis;
+    /**
+     * Both segments keep their least recently used entry first.
+     */
+    private final LinkedHashMap<String, Entry<V>> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry<V>> protectedSegment = new LinkedHashMap<>();
+
+    private long qidHits;
+    private long textHits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maximumSize maximum number of keys held (each answer is held under its qid and its text)
+     * @param ttlMillis time after which an entry is no longer returned
+     */
+    public AnswerCache(int maximumSize, long ttlMillis) {
+        this.protectedCapacity = maximumSize * 4 / 5;
+        this.probationCapacity = Math.max(1, maximumSize - protectedCapacity);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the cached answer for the question id, or else for the question text; null if neither is cached
+     */
+    public synchronized V get(String qid, String title, String body) {
+        long now = System.currentTimeMillis();
+        if (qid != null) {
+            Entry<V> entry = lookup(QID_PREFIX + qid, now);
+            if (entry != null) {
+                qidHits++;
+                return entry.value;
+            }
+        }
+        String text = normalize(title, body);
+        if (!text.isEmpty()) {
+            Entry<V> entry = lookup(TEXT_PREFIX + text, now);
+            if (entry != null) {
+                textHits++;
+                if (qid != null) {
+                    insert(QID_PREFIX + qid, entry);
+                }
+                return entry.value;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String qid, String title, String body, V value) {
+        Entry<V> entry = new Entry<>(value, System.currentTimeMillis() + ttlMillis);
+        if (qid != null) {
+            insert(QID_PREFIX + qid, entry);
+        }
+        String text = normalize(title, body);
+        if (!text.isEmpty()) {
+            insert(TEXT_PREFIX + text, entry);
+        }
+    }
+
+    private Entry<V> lookup(String key, long now) {
+        Entry<V> entry = protectedSegment.remove(key);
+        if (entry == null) {
+            entry = probation.remove(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= now) {
+            expirations++;
+            return null;
+        }
+        protectedSegment.put(key, entry);
+        if (protectedSegment.size() > protectedCapacity) {
+            // the least recently used protected entry gets another chance in probation
+            Iterator<Map.Entry<String, Entry<V>>> eldest = protectedSegment.entrySet().iterator();
+            Map.Entry<String, Entry<V>> demoted = eldest.next();
+            eldest.remove();
+            insert(demoted.getKey(), demoted.getValue());
+        }
+        return entry;
+    }
+
+    private void insert(String key, Entry<V> entry) {
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, entry);
+            return;
+        }
+        probation.remove(key);
+        probation.put(key, entry);
+        if (probation.size() > probationCapacity) {
+            Iterator<Entry<V>> eldest = probation.values().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Lower-cases the question and reduces everything but letters and digits to single spaces, so that
+     * reposts differing in case, punctuation or spacing share a key.
+     */
+    static String normalize(String title, String body) {
+        StringBuilder sb = new StringBuilder();
+        String text = (title == null ? "" : title) + " " + (body == null ? "" : body);
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+                sb.append(Character.toLowerCase(c));
+            } else {
+                pendingSpace = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long getQidHits() {
+        return qidHits;
+    }
+
+    public synchronized long getTextHits() {
+        return textHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AnswerCache[size=" + size() + ", qidHits=" + qidHits + ", textHits=" + textHits + ", misses="
+                        + misses + ", evictions=" + evictions + ", expirations=" + expirations + "]";
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.trec.liveqa;
+
+import org.trec.liveqa.TrecLiveQaDemoServer.AnswerAndResourcesAndSummaries;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * One way of answering a question (retrieval, templates, a model...). Several strategies run concurrently for
+ * each question, see {@link StrategySelector}; implementations should respond to interruption, which is how the
+ * losing strategies are cancelled.
+ *
+ */
+public interface AnswerStrategy {
+
+    /**
+     * @return a short name, for the log and the metrics
+     */
+    String name();
+
+    /**
+     * @param qid unique question id
+     * @param title question title
+     * @param body question body
+     * @param category (verbal description)
+     * @return the strategy's answer, or null if it has none
+     */
+    Candidate answer(String qid, String title, String body, String category) throws Exception;
+
+    /**
+     * An answer with the strategy's estimate of its quality.
+     */
+    public static final class Candidate {
+
+        private final AnswerAndResourcesAndSummaries answer;
+        private final double quality;
+
+        /**
+         * @param answer the answer
+         * @param quality estimated quality, from 0 (worthless) to 1 (certainly good)
+         */
+        public Candidate(AnswerAndResourcesAndSummaries answer, double quality) {
+            this.answer = answer;
+            this.quality = quality;
+        }
+
+        public AnswerAndResourcesAndSummaries answer() {
+            return answer;
+        }
+
+        public double quality() {
+            return quality;
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.trec.liveqa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * An XML document of several answers that can be read while the answers are still being computed: the answer
+ * elements come in the order they are {@link #add added}, and the document ends once all the expected answers
+ * have been. A read blocks until there is something to return, and then returns all that is ready, so that a
+ * chunked response sends every answer as soon as it is there.
+ *
+ */
+public class AnswerStream extends InputStream {
+
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending;
+    private byte[] current;
+    private int position;
+
+    /**
+     * @param answers the number of answers the document will hold
+     */
+    public AnswerStream(int answers) {
+        pending = new AtomicInteger(answers);
+        ready.add(AnswerXmlWriter.PROLOG);
+        if (answers == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Adds an answer element; may be called from any thread.
+     *
+     * @param fragment see {@link AnswerXmlWriter#toFragment()}
+     */
+    public void add(byte[] fragment) {
+        ready.add(fragment);
+        if (pending.decrementAndGet() == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        ready.add(AnswerXmlWriter.EPILOG);
+        ready.add(END);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (current == null || position == current.length) {
+            if (current == END) {
+                return -1;
+            }
+            try {
+                next(ready.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for answers");
+            }
+        }
+        int n = 0;
+        while (n < len && current != END) {
+            int count = Math.min(len - n, current.length - position);
+            System.arraycopy(current, position, b, off + n, count);
+            position += count;
+            n += count;
+            if (position == current.length) {
+                byte[] following = ready.poll();
+                if (following == null) {
+                    break;
+                }
+                next(following);
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    private void next(byte[] bytes) {
+        current = bytes;
+        position = 0;
+    }
+
+    /**
+     * @return the bytes that can be read without waiting for another answer
+     */
+    @Override
+    public int available() {
+        return current == null || current == END ? 0 : current.length - position;
+    }
+
+}
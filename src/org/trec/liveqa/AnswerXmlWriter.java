@@ -0,0 +1,270 @@
+package org.trec.liveqa;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Writes the answer XML straight into a pooled UTF-8 buffer, which the response then sends without copying and
+ * returns to the pool once it has been written.
+ * <p/>
+ * The output is byte for byte what {@link XmlUtils#writeDocumentToString} makes of the equivalent DOM document:
+ * same declaration, two-space indentation, attributes in the order given (the DOM serializer sorts them by
+ * name, so callers pass them sorted), and the same choice of characters written as references.
+ *
+ */
+public class AnswerXmlWriter {
+
+    static final byte[] PROLOG = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<xml>\n"
+                    .getBytes(TrecLiveQaDemoServer.WORKING_CHARSET);
+    static final byte[] EPILOG = "</xml>\n".getBytes(TrecLiveQaDemoServer.WORKING_CHARSET);
+    private static final int POOL_SIZE = 64;
+    /**
+     * Buffers that grew beyond this are not kept in the pool.
+     */
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final BlockingQueue<AnswerXmlWriter> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private byte[] buf = new byte[1024];
+    private int count;
+    private String open;
+
+    /**
+     * @return an empty writer, from the pool if one is free
+     */
+    public static AnswerXmlWriter obtain() {
+        AnswerXmlWriter writer = obtainFragment();
+        writer.append(PROLOG);
+        return writer;
+    }
+
+    /**
+     * @return an empty writer for an answer element alone, without the document around it, see
+     *         {@link #toFragment()}
+     */
+    public static AnswerXmlWriter obtainFragment() {
+        AnswerXmlWriter writer = POOL.poll();
+        if (writer == null) {
+            writer = new AnswerXmlWriter();
+        }
+        writer.count = 0;
+        writer.open = null;
+        return writer;
+    }
+
+    /**
+     * Starts the element holding the answer; its attributes are written in the given order.
+     */
+    public AnswerXmlWriter startElement(String name, String... attributeNamesAndValues) {
+        indent(2);
+        write('<');
+        writeAscii(name);
+        for (int i = 0; i < attributeNamesAndValues.length; i += 2) {
+            write(' ');
+            writeAscii(attributeNamesAndValues[i]);
+            write('=');
+            write('"');
+            escape(attributeNamesAndValues[i + 1], true);
+            write('"');
+        }
+        write('>');
+        write('\n');
+        open = name;
+        return this;
+    }
+
+    /**
+     * Adds an element with the given text inside it, like {@link XmlUtils#addElementWithText}.
+     */
+    public AnswerXmlWriter addElementWithText(String name, String text) {
+        indent(4);
+        write('<');
+        writeAscii(name);
+        if (text == null || text.isEmpty()) {
+            write('/');
+            write('>');
+        } else {
+            write('>');
+            escape(text, false);
+            write('<');
+            write('/');
+            writeAscii(name);
+            write('>');
+        }
+        write('\n');
+        return this;
+    }
+
+    /**
+     * Closes the document and hands the buffer to a response; the buffer goes back to the pool after it is sent.
+     */
+    public Response toResponse() {
+        endElement();
+        append(EPILOG);
+        return new Response(Response.Status.OK, NanoHTTPD.MIME_HTML, new PooledData(this));
+    }
+
+    /**
+     * Closes the answer element and returns the writer to the pool.
+     *
+     * @return the element, to be placed in a document made of {@link #PROLOG}, answers and {@link #EPILOG}
+     */
+    public byte[] toFragment() {
+        endElement();
+        byte[] fragment = Arrays.copyOf(buf, count);
+        recycle();
+        return fragment;
+    }
+
+    private void endElement() {
+        indent(2);
+        write('<');
+        write('/');
+        writeAscii(open);
+        write('>');
+        write('\n');
+    }
+
+    private void recycle() {
+        if (buf.length <= MAX_POOLED_CAPACITY) {
+            POOL.offer(this);
+        }
+    }
+
+    /**
+     * @return the document written so far, decoded
+     */
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, TrecLiveQaDemoServer.WORKING_CHARSET);
+    }
+
+    private void indent(int spaces) {
+        for (int i = 0; i < spaces; i++) {
+            write(' ');
+        }
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Escapes like the JDK's XML serializer: markup characters as entities; control characters, and
+     * characters outside the basic plane, as numeric references. Tabs and newlines stay as they are in text,
+     * and C1 control characters stay as they are in attributes.
+     */
+    private void escape(String s, boolean attribute) {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7f) {
+                switch (c) {
+                case '&':
+                    writeAscii("&amp;");
+                    break;
+                case '<':
+                    writeAscii("&lt;");
+                    break;
+                case '>':
+                    writeAscii("&gt;");
+                    break;
+                case '"':
+                    if (attribute) {
+                        writeAscii("&quot;");
+                    } else {
+                        write(c);
+                    }
+                    break;
+                default:
+                    write(c);
+                }
+            } else if (c < 0x20) {
+                if (!attribute && (c == '\t' || c == '\n')) {
+                    write(c);
+                } else {
+                    writeReference(c);
+                }
+            } else if (c <= 0x9f) {
+                if (attribute) {
+                    writeUtf8(c);
+                } else {
+                    writeReference(c);
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                writeReference(Character.toCodePoint(c, s.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                writeReference(c);
+            } else {
+                writeUtf8(c);
+            }
+        }
+    }
+
+    private void writeReference(int codePoint) {
+        writeAscii("&#");
+        writeAscii(Integer.toString(codePoint));
+        write(';');
+    }
+
+    private void writeUtf8(char c) {
+        if (c < 0x80) {
+            write(c);
+        } else if (c < 0x800) {
+            write(0xc0 | (c >> 6));
+            write(0x80 | (c & 0x3f));
+        } else {
+            write(0xe0 | (c >> 12));
+            write(0x80 | ((c >> 6) & 0x3f));
+            write(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void write(int b) {
+        if (count == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    private void append(byte[] bytes) {
+        if (count + bytes.length > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes.length));
+        }
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Response body over the writer's buffer; closing it, which the server does once the response has been
+     * written, recycles the writer.
+     */
+    private static class PooledData extends Response.ByteArrayData {
+        private AnswerXmlWriter writer;
+
+        PooledData(AnswerXmlWriter writer) {
+            super(writer.buf, 0, writer.count);
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (writer != null) {
+                writer.recycle();
+                writer = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.trec.liveqa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Append-only record of a crawl's progress, so that a crawl that died can pick up where it stopped. Each qid
+ * crawled gets a line with its outcome; lines are written in groups, each ended by a commit line holding the
+ * length of the output file, after both files are synced to disk. On opening, only committed groups count, and
+ * the output is cut back to the last committed length, so no record is lost or written twice.
+ * <p/>
+ * A resumed output holds each record once, but not necessarily in the order of the qids: the records of a run
+ * follow those of the runs before it, so a qid that failed and was retried comes after qids listed after it.
+ * Read it keyed by qid.
+ * <p/>
+ * Journal lines: <code>D qid</code> (done), <code>F qid</code> (failed, retried on the next run), <code>X qid</code>
+ * (the question is deleted) and <code>C length</code> (commit).
+ *
+ */
+public class CrawlJournal implements Closeable {
+
+    public enum Status {
+        DONE('D'), FAILED('F'), DELETED('X');
+
+        private final char code;
+
+        Status(char code) {
+            this.code = code;
+        }
+
+        static Status of(char code) {
+            for (Status status : values()) {
+                if (status.code == code) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final String JOURNAL_SUFFIX = ".journal";
+    /**
+     * Outcomes recorded before a commit...
+     */
+    public static final int DEFAULT_GROUP_SIZE = 100;
+    /**
+     * ... or time since the last commit, whichever comes first.
+     */
+    public static final long DEFAULT_GROUP_MILLIS = 1000;
+    private static final char COMMIT = 'C';
+
+    private final int groupSize;
+    private final long groupNanos;
+    private final FileChannel journal;
+    private final FileOutputStream output;
+    private final BufferedWriter writer;
+    private final Map<String, Status> statuses = new HashMap<>();
+    private final StringBuilder group = new StringBuilder();
+    private int grouped;
+    private long lastCommit = System.nanoTime();
+
+    /**
+     * The journal of the output file, next to it, see {@link #JOURNAL_SUFFIX}.
+     */
+    public CrawlJournal(File outputFile) throws IOException {
+        this(new File(outputFile.getPath() + JOURNAL_SUFFIX), outputFile, DEFAULT_GROUP_SIZE, DEFAULT_GROUP_MILLIS);
+    }
+
+    /**
+     * Opens the journal, reading the outcomes of earlier runs, and the output after them; with no journal yet, a
+     * new crawl starts and the output file is overwritten.
+     */
+    public CrawlJournal(File journalFile, File outputFile, int groupSize, long groupMillis) throws IOException {
+        this.groupSize = groupSize;
+        this.groupNanos = groupMillis * 1000000;
+        long committedOutput = journalFile.exists() ? recover(journalFile) : 0;
+        this.output = new FileOutputStream(outputFile, committedOutput > 0);
+        FileChannel channel = output.getChannel();
+        if (channel.size() < committedOutput) {
+            output.close();
+            throw new IOException(outputFile + " is shorter than its journal says, " + channel.size() + " < "
+                            + committedOutput + " bytes");
+        }
+        // records of the groups never committed
+        channel.truncate(committedOutput);
+        this.writer = new BufferedWriter(new OutputStreamWriter(output));
+        this.journal = new RandomAccessFile(journalFile, "rw").getChannel();
+        journal.position(journal.size());
+    }
+
+    /**
+     * Reads the committed groups and drops whatever follows them.
+     *
+     * @return the output length at the last commit
+     */
+    private long recover(File journalFile) throws IOException {
+        long committedOutput = 0;
+        long committedJournal = 0;
+        long read = 0;
+        List<String> qids = new ArrayList<>();
+        List<Status> outcomes = new ArrayList<>();
+        // qids are ASCII, so one char per byte
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                        StandardCharsets.ISO_8859_1))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                read += line.length() + 1;
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    break;
+                }
+                if (line.charAt(0) == COMMIT) {
+                    try {
+                        committedOutput = Long.parseLong(line.substring(2));
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                    for (int i = 0; i < qids.size(); i++) {
+                        statuses.put(qids.get(i), outcomes.get(i));
+                    }
+                    qids.clear();
+                    outcomes.clear();
+                    committedJournal = read;
+                    continue;
+                }
+                Status status = Status.of(line.charAt(0));
+                if (status == null) {
+                    break;
+                }
+                qids.add(line.substring(2));
+                outcomes.add(status);
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(committedJournal);
+        }
+        return committedOutput;
+    }
+
+    /**
+     * @return where the records of the qids go
+     */
+    public BufferedWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return whether an earlier run finished the qid: done, or found it deleted
+     */
+    public synchronized boolean isFinished(String qid) {
+        Status status = statuses.get(qid);
+        return status != null && status != Status.FAILED;
+    }
+
+    /**
+     * @return how many qids have the status, as last recorded
+     */
+    public synchronized int count(Status status) {
+        int count = 0;
+        for (Status s : statuses.values()) {
+            if (s == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Records the outcome of a qid, once its record, if any, is written; commits when the group is full or old
+     * enough.
+     */
+    public synchronized void record(String qid, Status status) throws IOException {
+        statuses.put(qid, status);
+        group.append(status.code).append(' ').append(qid).append('\n');
+        grouped++;
+        if (grouped >= groupSize || System.nanoTime() - lastCommit >= groupNanos) {
+            commit();
+        }
+    }
+
+    /**
+     * Syncs the output, then appends and syncs the outcomes recorded since the last commit.
+     */
+    public synchronized void commit() throws IOException {
+        lastCommit = System.nanoTime();
+        if (grouped == 0) {
+            return;
+        }
+        writer.flush();
+        output.getFD().sync();
+        group.append(COMMIT).append(' ').append(output.getChannel().position()).append('\n');
+        ByteBuffer buffer = ByteBuffer.wrap(group.toString().getBytes(StandardCharsets.ISO_8859_1));
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+        group.setLength(0);
+        grouped = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            writer.close();
+            journal.close();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.trec.liveqa;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * A fixed number of threads running tasks earliest deadline first, rather than in arrival order, so that a
+ * question close to its deadline does not wait behind fresh ones. A task that has less time left than the
+ * minimum budget when its turn comes is dropped (cancelled, if it is a {@link Future}) instead of taking a
+ * thread from questions that can still be answered in time.
+ * <p/>
+ * Tasks given without a deadline run after all those with one.
+ *
+ */
+public class DeadlineScheduler implements Executor {
+
+    private final ThreadPoolExecutor executor;
+    private final LongSupplier minimumBudget;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param threads number of threads
+     * @param minimumBudget milliseconds a task needs at least to be worth starting; asked for each task
+     */
+    public DeadlineScheduler(int threads, LongSupplier minimumBudget) {
+        this.minimumBudget = minimumBudget;
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                        new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "LiveQA Answer (#" + count.incrementAndGet() + ")");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(task, () -> Long.MAX_VALUE);
+    }
+
+    /**
+     * @param deadline the task's deadline, in {@link System#currentTimeMillis()} time; it may move later while
+     *            the task waits, which is taken into account when deciding to drop it, but not in its order
+     */
+    public void execute(Runnable task, LongSupplier deadline) {
+        executor.execute(new Entry(task, deadline, sequence.getAndIncrement()));
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks dropped for lack of time
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private class Entry implements Runnable, Comparable<Entry> {
+        private final Runnable task;
+        private final LongSupplier deadline;
+        private final long order;
+        private final long seq;
+
+        Entry(Runnable task, LongSupplier deadline, long seq) {
+            this.task = task;
+            this.deadline = deadline;
+            this.order = deadline.getAsLong();
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            long remaining = deadline.getAsLong() - System.currentTimeMillis();
+            if (remaining < minimumBudget.getAsLong()) {
+                dropped.incrementAndGet();
+                if (task instanceof Future) {
+                    ((Future<?>) task).cancel(true);
+                }
+                return;
+            }
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (order != other.order) {
+                return order < other.order ? -1 : 1;
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+}
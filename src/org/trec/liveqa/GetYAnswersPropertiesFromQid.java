@@ -2,30 +2,32 @@ package org.trec.liveqa;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
 /**
@@ -53,7 +55,13 @@ public class GetYAnswersPropertiesFromQid {
 
     }
 
-    public static class CheckTitle implements ElementPredicate {
+    /**
+     * A predicate that only accepts elements in the page's head, so the rest of the page need not be read.
+     */
+    public interface HeadPredicate extends ElementPredicate {
+    }
+
+    public static class CheckTitle implements HeadPredicate {
 
         @Override
         public boolean check(Element e) {
@@ -67,7 +75,7 @@ public class GetYAnswersPropertiesFromQid {
 
     }
 
-    public static class CheckBody implements ElementPredicate {
+    public static class CheckBody implements HeadPredicate {
 
         @Override
         public boolean check(Element e) {
@@ -113,104 +121,251 @@ public class GetYAnswersPropertiesFromQid {
 
     // ---------------------------------------------------
     
-    private static final String URL_PREFIX = "https://answers.yahoo.com/question/index?qid=";
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+    public static final String URL_PREFIX = "https://answers.yahoo.com/question/index?qid=";
+    /**
+     * System property: the page address without the qid, to crawl another server (such as a local stub).
+     */
+    public static final String URL_PREFIX_PROPERTY = "liveqa.crawlUrlPrefix";
+    private static final int SOCKET_TIMEOUT = 30000;
+    /**
+     * SimpleDateFormat is not thread-safe, so each crawling thread has its own.
+     */
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = ThreadLocal.withInitial(
+                    () -> new SimpleDateFormat("yyyyMMddHHmmss", Locale.US));
+    private static final HttpClient SHARED_CLIENT = newClient(YAnswersCrawler.DEFAULT_PARALLELISM, 3);
+    /**
+     * System property: when true, only the properties in the page's head are crawled, and pages are only read up
+     * to the end of their head.
+     */
+    public static final String HEAD_ONLY_PROPERTY = "liveqa.crawlHeadOnly";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    /**
+     * Note of a qid file line whose question is known to be deleted.
+     */
+    private static final String DELETED_MARK = "Deleted";
     private static CheckTitle ct = new CheckTitle();
     private static CheckBody cb = new CheckBody();
     private static CheckTopLevelCategory cc = new CheckTopLevelCategory();
     private static CheckBestAnswer cba = new CheckBestAnswer(); // not implemented
+    /**
+     * Question title, body and top level category.
+     */
+    public static final PropertyExtractor EXTRACTOR = new PropertyExtractor().add("Top level Category", cc)
+                    .add("Title", ct).add("Body", cb); // .add("Best Answer", cba)
+    /**
+     * Question title and body, both in the page's head.
+     */
+    public static final PropertyExtractor HEAD_EXTRACTOR = new PropertyExtractor().add("Title", ct).add("Body", cb);
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            System.out.println("Usage: GetYAnswersPropertiesFromQid <plaintext-list-of-qids> <out-file>");
+        if (args.length < 2 || args.length > 4) {
+            System.out.println("Usage: GetYAnswersPropertiesFromQid <plaintext-list-of-qids> <out-file> "
+                            + "[<parallelism> [<requests-per-second>]]");
             return;
         }
-        
-        BufferedWriter writer = getWriter(args[1]);        
-        String[] qids = getQids(args[0]);
-
-        for (String qid : qids) {
-            System.out.println("Getting data for QID " + qid);
-            writer.append(qid + ":");
-            writer.newLine();
-            for (Entry<String, String> kv : extractData(qid).entrySet()) {
-                writer.append(kv.getKey() + "\t" + kv.getValue());
-                writer.newLine();
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : YAnswersCrawler.DEFAULT_PARALLELISM;
+        double requestsPerSecond = args.length > 3 ? Double.parseDouble(args[3])
+                        : YAnswersCrawler.DEFAULT_REQUESTS_PER_SECOND;
+
+        Set<String> deleted = new HashSet<>();
+        String[] qids = getQids(args[0], deleted);
+        String cacheDir = System.getProperty(PageCache.CACHE_DIR_PROPERTY);
+        boolean offline = Boolean.getBoolean(PageCache.OFFLINE_PROPERTY);
+        if (offline && cacheDir == null) {
+            System.out.println("Offline crawling needs a page cache, see -D" + PageCache.CACHE_DIR_PROPERTY);
+            return;
+        }
+        PageCache cache = cacheDir != null ? new PageCache(new File(cacheDir), offline) : null;
+        try {
+            // resumes the crawl of an earlier run that was interrupted
+            CrawlJournal journal = new CrawlJournal(new File(args[1]));
+            try {
+                new YAnswersCrawler(System.getProperty(URL_PREFIX_PROPERTY, URL_PREFIX), parallelism,
+                                requestsPerSecond, Boolean.getBoolean(HEAD_ONLY_PROPERTY) ? HEAD_EXTRACTOR
+                                                : EXTRACTOR, cache).crawl(qids, deleted, journal);
+            } finally {
+                // commits what was written, even if the crawl failed
+                journal.close();
             }
+        } finally {
+            if (cache != null) {
+                cache.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the data of a qid: the qid, then a tab-separated line per property, then an empty line.
+     */
+    static void writeRecord(BufferedWriter writer, String qid, Map<String, String> data) throws IOException {
+        writer.append(qid + ":");
+        writer.newLine();
+        for (Entry<String, String> kv : data.entrySet()) {
+            writer.append(kv.getKey() + "\t" + kv.getValue());
             writer.newLine();
         }
-        writer.flush();
-        writer.close();
+        writer.newLine();
+    }
+
+    /**
+     * @param maxConnections connections kept open, to the one host crawled
+     * @param retries times a request is retried right away after a transport error
+     * @return a client whose connections are pooled and reused, safe for use by several threads
+     */
+    public static HttpClient newClient(int maxConnections, int retries) {
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(maxConnections);
+        params.setConnectionTimeout(SOCKET_TIMEOUT);
+        params.setSoTimeout(SOCKET_TIMEOUT);
+        HttpClient client = new HttpClient(connectionManager);
+        client.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(retries,
+                        false));
+        return client;
     }
 
-    private static String[] getQids(String inFile) throws IOException {
+    /**
+     * Reads a qid file: a qid per line, optionally followed by a tab and a note; <code>Deleted</code> marks a
+     * question known to be deleted.
+     *
+     * @param deleted receives the qids marked deleted, which are also in the returned list
+     * @return the qids, in the order of the file
+     */
+    static String[] getQids(String inFile, Set<String> deleted) throws IOException {
         BufferedReader reader = new BufferedReader(new FileReader(new File(inFile)));
         List<String> qids = new ArrayList<>();
         String l = reader.readLine();
         while (l != null) {
-            qids.add(l);
+            int tab = l.indexOf('\t');
+            String qid = (tab >= 0 ? l.substring(0, tab) : l).trim();
+            if (!qid.isEmpty()) {
+                qids.add(qid);
+                if (tab >= 0 && l.substring(tab + 1).trim().equals(DELETED_MARK)) {
+                    deleted.add(qid);
+                }
+            }
             l = reader.readLine();
         }
         reader.close();
         return qids.toArray(new String[qids.size()]);
     }
 
-    private static BufferedWriter getWriter(String fileLocation) throws FileNotFoundException {
-        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(fileLocation))));
+    /**
+     * 
+     * @param iQid question ID
+     * @return map of features and attributes: question title, body, category, best answer, date
+     * @throws Exception
+     */
+    public static Map<String, String> extractData(String iQid) throws Exception {
+        Map<String, String> res = new HashMap<>();
+        try {
+            return extractData(SHARED_CLIENT, URL_PREFIX, iQid, EXTRACTOR, null);
+        } catch (QuestionDeletedException e) {
+            System.err.println("Question deleted: " + iQid);
+            // as for any error page, which has none of the properties
+            res.putAll(EXTRACTOR.empty());
+        } catch (RetryableStatusException e) {
+            System.err.println("Method failed: " + e.getMessage());
+            res.putAll(EXTRACTOR.empty());
+        } catch (HttpException e) {
+            System.err.println("Fatal protocol violation: " + e.getMessage());
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.err.println("Fatal transport error: " + e.getMessage());
+            e.printStackTrace();
+        }
+        res.put("Date", DATE_FORMAT.get().parse(iQid.substring(0, 14)).toString());
+        return res;
     }
 
     /**
      * 
+     * @param client the client to fetch the page with, see {@link #newClient(int, int)}
+     * @param urlPrefix the page address without the qid
      * @param iQid question ID
+     * @param extractor the properties to extract from the page, see {@link #EXTRACTOR}
+     * @param cache where the pages are kept, to be fetched only if changed; null for none
      * @return map of features and attributes: question title, body, category, best answer, date
+     * @throws RetryableStatusException if the server is throttling or failing
+     * @throws QuestionDeletedException if there is no such question (any more)
+     * @throws PageCache.NotCachedException if offline and the page is not in the cache
+     * @throws IOException if the page could not be fetched
      * @throws Exception
      */
-    public static Map<String, String> extractData(String iQid) throws Exception {
+    public static Map<String, String> extractData(HttpClient client, String urlPrefix, String iQid,
+                    PropertyExtractor extractor, PageCache cache) throws Exception {
 
         Map<String, String> res = new HashMap<>();
 
         // parse date from qid
-        res.put("Date", DATE_FORMAT.parse(iQid.substring(0, 14)).toString());
+        res.put("Date", DATE_FORMAT.get().parse(iQid.substring(0, 14)).toString());
 
         // get and mine html page
-        String url = URL_PREFIX + iQid;
-        HttpClient client = new HttpClient();
+        String url = urlPrefix + iQid;
+        PageCache.Entry cached = cache != null ? cache.get(iQid) : null;
+        if (cache != null && cache.isOffline()) {
+            if (cached == null) {
+                throw new PageCache.NotCachedException(iQid);
+            }
+            try (InputStream page = cache.open(cached)) {
+                res.putAll(extractor.extract(page, "UTF8", url));
+            } catch (FileNotFoundException e) {
+                cache.remove(iQid, cached);
+                throw new PageCache.NotCachedException(iQid);
+            }
+            return res;
+        }
+
         GetMethod method = new GetMethod(url);
-        method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(3, false));
+        if (cached != null) {
+            // the server answers 304 Not Modified, without the page, if it did not change
+            if (cached.getETag() != null) {
+                method.setRequestHeader("If-None-Match", cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                method.setRequestHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
         try {
             int statusCode = client.executeMethod(method);
-            if (statusCode != HttpStatus.SC_OK) {
-                System.err.println("Method failed: " + method.getStatusLine());
+            if (statusCode == SC_TOO_MANY_REQUESTS || statusCode >= 500) {
+                throw new RetryableStatusException(statusCode, headerValue(method, "Retry-After"));
+            }
+            if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_GONE) {
+                throw new QuestionDeletedException(statusCode);
+            }
+            InputStream responseBody;
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                try {
+                    responseBody = cache.open(cached);
+                } catch (FileNotFoundException e) {
+                    // the page file was deleted: a cache miss, so the page is fetched again, unconditionally
+                    cache.remove(iQid, cached);
+                    method.releaseConnection();
+                    return extractData(client, urlPrefix, iQid, extractor, cache);
+                }
+            } else if (statusCode == HttpStatus.SC_OK && cache != null) {
+                // the whole page is read, to be cached
+                byte[] page = method.getResponseBody();
+                cache.put(iQid, page, headerValue(method, "ETag"), headerValue(method, "Last-Modified"));
+                responseBody = new ByteArrayInputStream(page);
+            } else {
+                if (statusCode != HttpStatus.SC_OK) {
+                    System.err.println("Method failed: " + method.getStatusLine());
+                }
+                responseBody = method.getResponseBodyAsStream();
             }
-            InputStream responseBody = method.getResponseBodyAsStream();
-
-            // strip top levels
-            Document doc = Jsoup.parse(responseBody, "UTF8", url);
-            Element html = doc.child(0);
-            
-            Element body = html.child(1);
-            Element head = html.child(0);
-
-            // get category
-            res.put("Top level Category", findElementText(body, cc));
-
-            // get title
-            res.put("Title", findElementText(head, ct));
-
-            // get body
-            res.put("Body", findElementText(head, cb));
 
-            // get best answer
-            // res.put("Best Answer", findElementText(body, cba));
+            // get category, title, body (best answer not implemented)
+            res.putAll(extractor.extract(responseBody, "UTF8", url));
 
+            if (extractor.isHeadOnly() && cache == null) {
+                // rather than reading the rest of the page to reuse the connection
+                method.abort();
+            }
             responseBody.close();
 
-        } catch (HttpException e) {
-            System.err.println("Fatal protocol violation: " + e.getMessage());
-            e.printStackTrace();
-        } catch (IOException e) {
-            System.err.println("Fatal transport error: " + e.getMessage());
-            e.printStackTrace();
         } finally {
             method.releaseConnection();
         }
@@ -218,22 +373,63 @@ public class GetYAnswersPropertiesFromQid {
         return res;
     }
 
-    private static String findElementText(Element topElem, ElementPredicate f) {
-        Element elem = findElement(topElem, f);
-        return elem == null ? "" : f.getText(elem);
+    private static String headerValue(GetMethod method, String name) {
+        Header header = method.getResponseHeader(name);
+        return header != null ? header.getValue() : null;
     }
 
-    private static Element findElement(Element e, ElementPredicate f) {
-        if (f.check(e)) {
-            return e;
-        }
-        for (Element c : e.children()) {
-            Element elem = findElement(c, f);
-            if (elem != null) {
-                return elem;
+    /**
+     * The server answered with a status worth retrying later: it is throttling (429) or failing (5xx).
+     */
+    public static class RetryableStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final long retryAfterMillis;
+
+        /**
+         * @param status the response status
+         * @param retryAfter the Retry-After header, if any; only the delay in seconds form is understood
+         */
+        public RetryableStatusException(int status, String retryAfter) {
+            super("HTTP status " + status);
+            this.status = status;
+            long millis = -1;
+            if (retryAfter != null) {
+                try {
+                    millis = Long.parseLong(retryAfter.trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // an HTTP date; the caller's own backoff applies
+                }
             }
+            this.retryAfterMillis = millis;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the delay the server asked for, -1 if none
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+    }
+
+    /**
+     * The question is not there (404) or not any more (410); asking again will not help.
+     */
+    public static class QuestionDeletedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public QuestionDeletedException(int status) {
+            super("HTTP status " + status);
         }
-        return null;
+
     }
 
 }
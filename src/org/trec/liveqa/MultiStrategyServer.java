@@ -0,0 +1,122 @@
+package org.trec.liveqa;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Answers every question with several {@link AnswerStrategy strategies} at once and returns the best answer ready
+ * in time, see {@link StrategySelector}. The strategies here are stand-ins of different speed and quality: a
+ * template answer that is immediate, a retrieval answer that takes a moment and a model answer that takes a few
+ * seconds. Replace them with real ones by passing a selector to the constructor.
+ *
+ */
+public class MultiStrategyServer extends TrecLiveQaDemoServer {
+
+    /**
+     * System property: estimated quality, from 0 to 1, at which an answer is taken without waiting for the others.
+     */
+    public static final String QUALITY_THRESHOLD_PROPERTY = "liveqa.qualityThreshold";
+    /**
+     * System property: milliseconds before the answer deadline at which the best answer so far is taken.
+     */
+    public static final String DEADLINE_MARGIN_PROPERTY = "liveqa.deadlineMargin";
+
+    private final StrategySelector selector;
+
+    public MultiStrategyServer(int port, StrategySelector selector) {
+        super(port);
+        this.selector = selector;
+    }
+
+    @Override
+    protected AnswerAndResourcesAndSummaries getAnswerAndResourcesAndSummaries(String qid, String title, String body,
+                    String category) throws InterruptedException {
+        return selector.select(qid, title, body, category);
+    }
+
+    public StrategySelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * A canned answer, right away.
+     */
+    static class TemplateStrategy implements AnswerStrategy {
+
+        @Override
+        public String name() {
+            return "template";
+        }
+
+        @Override
+        public Candidate answer(String qid, String title, String body, String category) {
+            return new Candidate(new AnswerAndResourcesAndSummaries("my answer", "resource1,resource2",
+                            "0-" + title.length(), dummyTwoSpans(body.length()), "my summary"), 0.2);
+        }
+
+    }
+
+    /**
+     * Stands in for a search over answered questions: points to the question's category.
+     */
+    static class RetrievalStrategy implements AnswerStrategy {
+
+        @Override
+        public String name() {
+            return "retrieval";
+        }
+
+        @Override
+        public Candidate answer(String qid, String title, String body, String category) throws InterruptedException {
+            Thread.sleep(300);
+            StringBuilder resources = new StringBuilder();
+            for (String catWord : category.split("\\s+")) {
+                if (resources.length() > 0) {
+                    resources.append(RESOURCES_LIST_SEPARATOR);
+                }
+                resources.append(catWord);
+            }
+            return new Candidate(new AnswerAndResourcesAndSummaries("See other answers about " + category + ".",
+                            resources.toString(), "0-" + title.length(), dummyTwoSpans(body.length()), category), 0.5);
+        }
+
+    }
+
+    /**
+     * Stands in for a generative model: the best answer, but slow.
+     */
+    static class ModelStrategy implements AnswerStrategy {
+
+        @Override
+        public String name() {
+            return "model";
+        }
+
+        @Override
+        public Candidate answer(String qid, String title, String body, String category) throws InterruptedException {
+            Thread.sleep(3000);
+            return new Candidate(new AnswerAndResourcesAndSummaries("A considered answer to: " + title, "", "0-"
+                            + title.length(), dummyTwoSpans(body.length()), title), 0.9);
+        }
+
+    }
+
+    public static void main(String[] args) throws IOException {
+        StrategySelector selector = new StrategySelector(Arrays.<AnswerStrategy> asList(new TemplateStrategy(),
+                        new RetrievalStrategy(), new ModelStrategy()), newAnswerExecutor(0), Double.parseDouble(System
+                        .getProperty(QUALITY_THRESHOLD_PROPERTY, Double.toString(
+                                        StrategySelector.DEFAULT_QUALITY_THRESHOLD))), Long.getLong(
+                        DEADLINE_MARGIN_PROPERTY, StrategySelector.DEFAULT_DEADLINE_MARGIN));
+        MultiStrategyServer server = new MultiStrategyServer(args.length == 0 ? DEFAULT_PORT : Integer
+                        .parseInt(args[0]), selector);
+        configure(server);
+        server.start();
+        System.in.read();
+        server.stop();
+    }
+
+}
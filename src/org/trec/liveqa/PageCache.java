@@ -0,0 +1,243 @@
+package org.trec.liveqa;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Keeps the pages crawled on disk, so that extraction can be re-run without downloading them again: either
+ * offline, from the cache alone, or asking the server only for pages that changed (by their ETag and
+ * Last-Modified validators).
+ * <p/>
+ * Pages are stored gzipped under the SHA-256 of their content, so a page fetched again unchanged is stored once;
+ * an append-only index maps each qid to its page's hash and validators, the last line of a qid winning. Closing
+ * the cache closes the index.
+ *
+ */
+public class PageCache implements Closeable {
+
+    /**
+     * A cached page of a qid.
+     */
+    public static class Entry {
+
+        private final String hash;
+        private final String eTag;
+        private final String lastModified;
+
+        Entry(String hash, String eTag, String lastModified) {
+            this.hash = hash;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the ETag header the page came with, null if none
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the Last-Modified header the page came with, null if none
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+    }
+
+    /**
+     * Offline, the page of a qid was not in the cache.
+     */
+    public static class NotCachedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public NotCachedException(String qid) {
+            super("Not in the page cache: " + qid);
+        }
+
+    }
+
+    /**
+     * System property: the directory of the cache; none by default.
+     */
+    public static final String CACHE_DIR_PROPERTY = "liveqa.crawlCache";
+    /**
+     * System property: when true, pages are only read from the cache, never fetched.
+     */
+    public static final String OFFLINE_PROPERTY = "liveqa.crawlOffline";
+    private static final String INDEX_FILE = "index.tsv";
+    private static final String PAGES_DIR = "pages";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File pages;
+    private final boolean offline;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Writer index;
+
+    /**
+     * Opens the cache in the directory, creating it if needed, and reads its index.
+     *
+     * @param offline see {@link #isOffline()}
+     */
+    public PageCache(File dir, boolean offline) throws IOException {
+        this.pages = new File(dir, PAGES_DIR);
+        this.offline = offline;
+        if (!pages.isDirectory() && !pages.mkdirs()) {
+            throw new IOException("Cannot create " + pages);
+        }
+        File indexFile = new File(dir, INDEX_FILE);
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                            StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    // a line cut short by a crash is ignored, its page fetched again
+                    if (fields.length == 4) {
+                        entries.put(fields[0], new Entry(fields[1], emptyToNull(fields[2]), emptyToNull(fields[3])));
+                    }
+                }
+            }
+        }
+        this.index = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return whether pages are only to be read from the cache
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @return the cached page of the qid, null if none
+     */
+    public Entry get(String qid) {
+        return entries.get(qid);
+    }
+
+    /**
+     * @return the content of a cached page
+     * @throws FileNotFoundException if the page file was deleted
+     */
+    public InputStream open(Entry entry) throws IOException {
+        return new GZIPInputStream(new FileInputStream(file(entry.getHash())));
+    }
+
+    /**
+     * Forgets the cached page of a qid, if it is still the given one, as when its file is missing; the index
+     * keeps it until the page is stored again.
+     */
+    public void remove(String qid, Entry entry) {
+        entries.remove(qid, entry);
+    }
+
+    /**
+     * Stores the page of a qid, replacing the one cached before.
+     *
+     * @param eTag the ETag header of the response, null if none
+     * @param lastModified the Last-Modified header of the response, null if none
+     * @return the new entry
+     */
+    public Entry put(String qid, byte[] page, String eTag, String lastModified) throws IOException {
+        String hash = hash(page);
+        File file = file(hash);
+        if (!file.exists()) {
+            // written aside and moved in place, so that a page in the cache is always whole
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            File temp = File.createTempFile(hash, ".tmp", dir);
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(temp))) {
+                out.write(page);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Entry entry = new Entry(hash, clean(eTag), clean(lastModified));
+        synchronized (index) {
+            index.write(qid + "\t" + hash + "\t" + nullToEmpty(entry.getETag()) + "\t"
+                            + nullToEmpty(entry.getLastModified()) + "\n");
+            index.flush();
+        }
+        entries.put(qid, entry);
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (index) {
+            index.close();
+        }
+    }
+
+    /**
+     * Pages are spread over subdirectories by the first byte of their hash, to keep directories small.
+     */
+    private File file(String hash) {
+        return new File(new File(pages, hash.substring(0, 2)), hash + ".html.gz");
+    }
+
+    private static String hash(byte[] page) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(page);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return the header value, null if none or if it would break the index line
+     */
+    private static String clean(String value) {
+        return value == null || value.isEmpty() || value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0
+                        || value.indexOf('\r') >= 0 ? null : value;
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+}
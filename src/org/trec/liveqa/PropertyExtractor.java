@@ -0,0 +1,175 @@
+package org.trec.liveqa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+import org.trec.liveqa.GetYAnswersPropertiesFromQid.ElementPredicate;
+import org.trec.liveqa.GetYAnswersPropertiesFromQid.HeadPredicate;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Extracts properties of a page, each the text of the first element that a predicate accepts. A
+ * {@link HeadPredicate} is only checked against the page's <code>&lt;head&gt;</code> and any other predicate only
+ * against its <code>&lt;body&gt;</code>, where the properties have always been looked for. Each of the two is
+ * walked once for all its predicates, in document order and without recursion, and the walk stops as soon as
+ * they are all found. When all the predicates are {@link HeadPredicate}s, the page is only read and parsed up to
+ * its <code>&lt;/head&gt;</code>.
+ *
+ */
+public class PropertyExtractor {
+
+    private static final byte[] HEAD_END = "</head>".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 8192;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<ElementPredicate> predicates = new ArrayList<>();
+
+    /**
+     * Registers a property.
+     *
+     * @param name the property name, as written in the crawl output
+     * @param predicate finds the element holding it
+     * @return this extractor
+     */
+    public PropertyExtractor add(String name, ElementPredicate predicate) {
+        names.add(name);
+        predicates.add(predicate);
+        return this;
+    }
+
+    /**
+     * @return the properties, all empty, as extracted from a page that has none of them
+     */
+    public Map<String, String> empty() {
+        Map<String, String> res = new HashMap<>();
+        for (String name : names) {
+            res.put(name, "");
+        }
+        return res;
+    }
+
+    /**
+     * @return whether all the properties are in the page's head
+     */
+    public boolean isHeadOnly() {
+        for (ElementPredicate predicate : predicates) {
+            if (!(predicate instanceof HeadPredicate)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a page and extracts the properties from it; when {@link #isHeadOnly()}, stops reading the page after
+     * its head, so the rest of the stream is left unread.
+     *
+     * @return the properties, empty when not found
+     */
+    public Map<String, String> extract(InputStream page, String charsetName, String baseUri) throws IOException {
+        if (isHeadOnly()) {
+            page = new ByteArrayInputStream(readHead(page));
+        }
+        return extract(Jsoup.parse(page, charsetName, baseUri));
+    }
+
+    /**
+     * @param document the parsed page
+     * @return the properties, empty when not found
+     */
+    public Map<String, String> extract(Document document) {
+        String[] values = new String[predicates.size()];
+        Element html = document.child(0);
+        // a parsed page always has both, in this order
+        find(html.child(0), true, values);
+        find(html.child(1), false, values);
+
+        Map<String, String> res = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            res.put(names.get(i), values[i] == null ? "" : values[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Finds the properties of the head predicates, or of the others, in the element and its descendants.
+     */
+    private void find(Element scope, boolean head, String[] values) {
+        int size = predicates.size();
+        int remaining = 0;
+        for (int i = 0; i < size; i++) {
+            if (predicates.get(i) instanceof HeadPredicate == head) {
+                remaining++;
+            }
+        }
+        // pre-order walk along the sibling and parent links, as jsoup's NodeTraversor does
+        Node node = scope;
+        int depth = 0;
+        while (node != null && remaining > 0) {
+            if (node instanceof Element) {
+                Element e = (Element) node;
+                for (int i = 0; i < size; i++) {
+                    ElementPredicate predicate = predicates.get(i);
+                    if (values[i] == null && predicate instanceof HeadPredicate == head && predicate.check(e)) {
+                        values[i] = predicate.getText(e);
+                        remaining--;
+                    }
+                }
+            }
+            if (node.childNodeSize() > 0) {
+                node = node.childNode(0);
+                depth++;
+            } else {
+                while (node.nextSibling() == null && depth > 0) {
+                    node = node.parentNode();
+                    depth--;
+                }
+                node = depth > 0 ? node.nextSibling() : null;
+            }
+        }
+    }
+
+    /**
+     * @return the page up to where its head ends, or all of it if it has no end of head
+     */
+    static byte[] readHead(InputStream page) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int matched = 0;
+        int read;
+        while ((read = page.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int b = buffer[i];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                // no proper prefix of the pattern is also its suffix, so on a mismatch the match restarts here
+                matched = b == HEAD_END[matched] ? matched + 1 : b == HEAD_END[0] ? 1 : 0;
+                if (matched == HEAD_END.length) {
+                    // the match may have begun in an earlier buffer
+                    head.write(buffer, 0, i + 1);
+                    return Arrays.copyOf(head.toByteArray(), head.size() - HEAD_END.length);
+                }
+            }
+            head.write(buffer, 0, read);
+        }
+        return head.toByteArray();
+    }
+
+}
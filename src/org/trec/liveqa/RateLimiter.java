@@ -0,0 +1,44 @@
+package org.trec.liveqa;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Spaces out permits evenly at a given rate: each caller is given the next free slot and sleeps until it.
+ *
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private long next = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond the rate; 0 or less for no limit
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this.intervalNanos = permitsPerSecond > 0 ? (long) (1e9 / permitsPerSecond) : 0;
+    }
+
+    /**
+     * Waits for the next permit.
+     */
+    public void acquire() throws InterruptedException {
+        if (intervalNanos == 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long slot = Math.max(next, now);
+            next = slot + intervalNanos;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+}
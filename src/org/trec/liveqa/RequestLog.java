@@ -0,0 +1,253 @@
+package org.trec.liveqa;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Asynchronous log of answered questions, one fixed-schema line per request. Request threads only fill a
+ * preallocated slot of a ring buffer; a background thread formats and writes the lines. When the ring is full
+ * the record is dropped and counted rather than making the request wait.
+ * <p/>
+ * The question and answer texts are kept for a sample of the records only.
+ *
+ */
+public class RequestLog {
+
+    /**
+     * How a request was answered.
+     */
+    public enum Outcome {
+        /** the answer was computed (possibly for an identical question, see the coalesced field) */
+        COMPUTED,
+        /** the answer came from the answer cache */
+        CACHED,
+        /** the deadline expired first; answered with the partial answer, if any */
+        DEADLINE,
+        /** the computation was dropped, too close to the deadline to start; answered as not answered */
+        DROPPED,
+        /** the computation failed */
+        FAILED,
+        /** the server was saturated and turned the question away */
+        OVERLOADED
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final int sampleEvery;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Sequence number of the next record to write; only advanced by the writer thread.
+     */
+    private volatile long consumed;
+    private volatile boolean running = true;
+    private final OutputStream stream;
+    private final Writer out;
+    private final Thread writer;
+
+    /**
+     * @param out where the lines go; closed when the log is closed, unless it is System.err or System.out
+     * @param capacity number of records that may wait to be written; rounded up to a power of two
+     * @param sampleRate fraction of records that include the question and answer texts, 0 for none
+     */
+    public RequestLog(OutputStream out, int capacity, double sampleRate) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        mask = size - 1;
+        sampleEvery = sampleRate <= 0 ? 0 : (int) Math.max(1, Math.round(1 / sampleRate));
+        this.stream = out;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, TrecLiveQaDemoServer.WORKING_CHARSET), 64 * 1024);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "LiveQA Request Log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records one request. Never blocks.
+     *
+     * @param qid the question id
+     * @param outcome how the question was answered
+     * @param coalesced whether the answer was computed for an identical question that was already in progress
+     * @param receivedAt when the request arrived
+     * @param readAt when the question had been read
+     * @param answeredAt when the answer (or the decision not to answer) was available
+     * @param doneAt when the response had been rendered
+     * @param answered whether an answer was given
+     * @param answerChars length of the answer, 0 if none
+     * @param resourcesChars length of the resources list, 0 if none
+     * @param title the question title, only logged in sampled records
+     * @param body the question body, only logged in sampled records
+     * @param answer the answer, only logged in sampled records
+     */
+    public void log(String qid, Outcome outcome, boolean coalesced, long receivedAt, long readAt, long answeredAt,
+                    long doneAt, boolean answered, int answerChars, int resourcesChars, String title, String body,
+                    String answer) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Event event = ring[(int) seq & mask];
+        event.qid = qid;
+        event.outcome = outcome;
+        event.coalesced = coalesced;
+        event.receivedAt = receivedAt;
+        event.readAt = readAt;
+        event.answeredAt = answeredAt;
+        event.doneAt = doneAt;
+        event.answered = answered;
+        event.answerChars = answerChars;
+        event.resourcesChars = resourcesChars;
+        boolean sampled = sampleEvery > 0 && seq % sampleEvery == 0;
+        event.title = sampled ? title : null;
+        event.body = sampled ? body : null;
+        event.answer = sampled ? answer : null;
+        event.published = seq;
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the remaining records and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stream != System.err && stream != System.out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        boolean dirty = false;
+        try {
+            while (true) {
+                long seq = consumed;
+                Event event = ring[(int) seq & mask];
+                if (event.published != seq) {
+                    if (seq == claimed.get() && !running) {
+                        break;
+                    }
+                    if (dirty) {
+                        out.flush();
+                        dirty = false;
+                    }
+                    LockSupport.parkNanos(1000000);
+                    continue;
+                }
+                line.setLength(0);
+                event.format(line);
+                event.title = event.body = event.answer = null;
+                consumed = seq + 1;
+                out.append(line);
+                dirty = true;
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Event {
+        volatile long published = -1;
+        String qid;
+        Outcome outcome;
+        boolean coalesced;
+        long receivedAt;
+        long readAt;
+        long answeredAt;
+        long doneAt;
+        boolean answered;
+        int answerChars;
+        int resourcesChars;
+        String title;
+        String body;
+        String answer;
+
+        void format(StringBuilder sb) {
+            sb.append("ts=").append(receivedAt);
+            sb.append("\tqid=").append(qid);
+            sb.append("\toutcome=").append(outcome);
+            sb.append("\tcoalesced=").append(coalesced);
+            sb.append("\treadMs=").append(readAt - receivedAt);
+            sb.append("\tanswerMs=").append(answeredAt - readAt);
+            sb.append("\trenderMs=").append(doneAt - answeredAt);
+            sb.append("\ttotalMs=").append(doneAt - receivedAt);
+            sb.append("\tanswered=").append(answered ? TrecLiveQaDemoServer.YES : TrecLiveQaDemoServer.NO);
+            sb.append("\tanswerChars=").append(answerChars);
+            sb.append("\tresourcesChars=").append(resourcesChars);
+            if (title != null || body != null || answer != null) {
+                appendText(sb, "title", title);
+                appendText(sb, "body", body);
+                appendText(sb, "answer", answer);
+            }
+            sb.append('\n');
+        }
+
+        /**
+         * Keeps a record on one line: tabs, newlines and backslashes are escaped.
+         */
+        private static void appendText(StringBuilder sb, String name, String text) {
+            sb.append('\t').append(name).append('=');
+            if (text == null) {
+                return;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    sb.append(c);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package org.trec.liveqa;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Latency histograms of the request stages, and request counters, written out in the Prometheus text format.
+ *
+ */
+public class ServerMetrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** from the request's arrival until its header was parsed (includes waiting for a worker) */
+    final LatencyHistogram acceptToParse = new LatencyHistogram();
+    /** reading the question from the body */
+    final LatencyHistogram parseBody = new LatencyHistogram();
+    /** computing an answer (once per computation, not per coalesced request) */
+    final LatencyHistogram answer = new LatencyHistogram();
+    /** writing the answer XML */
+    final LatencyHistogram serialize = new LatencyHistogram();
+    /** sending the response */
+    final LatencyHistogram send = new LatencyHistogram();
+    /** from the request's arrival until the response was sent */
+    final LatencyHistogram total = new LatencyHistogram();
+
+    private final AtomicLongArray outcomes = new AtomicLongArray(RequestLog.Outcome.values().length);
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    void questionStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void questionFinished(RequestLog.Outcome outcome) {
+        inFlight.decrementAndGet();
+        outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    void responseSent(int status) {
+        responses.increment();
+        if (status >= 500) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * @return the metrics, and the gauges and counters of the server, in the Prometheus text format
+     */
+    public String render(TrecLiveQaDemoServer server) {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# HELP liveqa_stage_seconds Latency of the request stages.\n");
+        sb.append("# TYPE liveqa_stage_seconds summary\n");
+        summary(sb, "accept_to_parse", acceptToParse);
+        summary(sb, "parse_body", parseBody);
+        summary(sb, "answer", answer);
+        summary(sb, "serialize", serialize);
+        summary(sb, "send", send);
+        summary(sb, "total", total);
+
+        sb.append("# HELP liveqa_questions_total Questions answered, by how they were answered.\n");
+        sb.append("# TYPE liveqa_questions_total counter\n");
+        for (RequestLog.Outcome outcome : RequestLog.Outcome.values()) {
+            sb.append("liveqa_questions_total{outcome=\"")
+                            .append(outcome.name().toLowerCase(TrecLiveQaDemoServer.WORKING_LOCALE)).append("\"} ")
+                            .append(outcomes.get(outcome.ordinal())).append('\n');
+        }
+        counter(sb, "liveqa_responses_total", "HTTP responses sent.", responses.sum());
+        counter(sb, "liveqa_errors_total", "HTTP responses sent with a 5xx status.", errors.sum());
+        gauge(sb, "liveqa_questions_in_flight", "Questions being answered.", inFlight.get());
+        counter(sb, "liveqa_deadline_hits_total", "Questions answered at the deadline.", server.getDeadlineHits());
+        counter(sb, "liveqa_coalesced_total", "Questions that joined an identical question in progress.",
+                        server.getCoalescedQuestions());
+
+        AnswerCache<?> cache = server.getAnswerCache();
+        if (cache != null) {
+            sb.append("# HELP liveqa_cache_lookups_total Answer cache lookups, by result.\n");
+            sb.append("# TYPE liveqa_cache_lookups_total counter\n");
+            sb.append("liveqa_cache_lookups_total{result=\"qid_hit\"} ").append(cache.getQidHits()).append('\n');
+            sb.append("liveqa_cache_lookups_total{result=\"text_hit\"} ").append(cache.getTextHits()).append('\n');
+            sb.append("liveqa_cache_lookups_total{result=\"miss\"} ").append(cache.getMisses()).append('\n');
+            counter(sb, "liveqa_cache_evictions_total", "Answer cache entries evicted for size.", cache.getEvictions());
+            counter(sb, "liveqa_cache_expirations_total", "Answer cache entries expired.", cache.getExpirations());
+            gauge(sb, "liveqa_cache_size", "Answer cache keys.", cache.size());
+        }
+        if (server.getAnswerExecutor() instanceof DeadlineScheduler) {
+            DeadlineScheduler scheduler = (DeadlineScheduler) server.getAnswerExecutor();
+            gauge(sb, "liveqa_questions_queued", "Questions waiting for an answer thread.", scheduler.getQueued());
+            counter(sb, "liveqa_questions_dropped_total", "Questions dropped by the scheduler for lack of time.",
+                            scheduler.getDropped());
+        }
+        if (server instanceof MultiStrategyServer) {
+            StrategySelector selector = ((MultiStrategyServer) server).getSelector();
+            List<AnswerStrategy> strategies = selector.getStrategies();
+            long[] wins = selector.getWins();
+            sb.append("# HELP liveqa_strategy_wins_total Answers taken, by the strategy that gave them.\n");
+            sb.append("# TYPE liveqa_strategy_wins_total counter\n");
+            for (int i = 0; i < wins.length; i++) {
+                sb.append("liveqa_strategy_wins_total{strategy=\"").append(strategies.get(i).name()).append("\"} ")
+                                .append(wins[i]).append('\n');
+            }
+        }
+        RequestLog log = server.getRequestLog();
+        if (log != null) {
+            counter(sb, "liveqa_request_log_dropped_total", "Request log records dropped.", log.getDropped());
+        }
+
+        sb.append("# HELP nanohttpd_connections Open connections, by state.\n");
+        sb.append("# TYPE nanohttpd_connections gauge\n");
+        sb.append("nanohttpd_connections{state=\"busy\"} ").append(server.getBusyConnectionCount()).append('\n');
+        sb.append("nanohttpd_connections{state=\"idle\"} ").append(server.getIdleConnectionCount()).append('\n');
+        counter(sb, "nanohttpd_connections_reaped_total", "Idle connections closed by the reaper.",
+                        server.getReapedConnectionCount());
+        return sb.toString();
+    }
+
+    private static void summary(StringBuilder sb, String stage, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            sb.append("liveqa_stage_seconds{stage=\"").append(stage).append("\",quantile=\"").append(quantile)
+                            .append("\"} ").append(seconds(histogram.quantile(quantile))).append('\n');
+        }
+        sb.append("liveqa_stage_seconds_sum{stage=\"").append(stage).append("\"} ").append(seconds(histogram.sum()))
+                        .append('\n');
+        sb.append("liveqa_stage_seconds_count{stage=\"").append(stage).append("\"} ").append(histogram.count())
+                        .append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+}
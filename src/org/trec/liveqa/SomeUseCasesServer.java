@@ -48,6 +48,7 @@ public class SomeUseCasesServer extends TrecLiveQaDemoServer {
 
     public static void main(String[] args) throws IOException {
         SomeUseCasesServer server = new SomeUseCasesServer(args.length == 0 ? DEFAULT_PORT : Integer.parseInt(args[0]));
+        configure(server);
         server.start();
         System.in.read();
         server.stop();
@@ -0,0 +1,145 @@
+package org.trec.liveqa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import org.trec.liveqa.TrecLiveQaDemoServer.AnswerAndResourcesAndSummaries;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Runs all {@link AnswerStrategy strategies} on a question concurrently and picks the best candidate that is ready
+ * when one reaches the quality threshold, when all are done, or when the answer deadline nears, whichever is
+ * first; the strategies still running are then cancelled. Every improvement is offered as the partial answer, so
+ * the deadline fallback also returns the best candidate so far.
+ * <p/>
+ * Must be called from {@link TrecLiveQaDemoServer#getAnswerAndResourcesAndSummaries}, where the deadline is known.
+ *
+ */
+public class StrategySelector {
+
+    public static final double DEFAULT_QUALITY_THRESHOLD = 0.8;
+    /**
+     * Stop waiting this long before the deadline, to leave time for sending the answer.
+     */
+    public static final long DEFAULT_DEADLINE_MARGIN = 500;
+
+    private static final Logger logger = Logger.getLogger(StrategySelector.class.getName());
+
+    private final List<AnswerStrategy> strategies;
+    private final Executor executor;
+    private final double qualityThreshold;
+    private final long deadlineMargin;
+    private final AtomicLongArray wins;
+
+    /**
+     * @param strategies the strategies, all run for every question
+     * @param executor runs the strategies; needs a thread per strategy to run them all at once
+     * @param qualityThreshold a candidate at least this good is taken without waiting for the others
+     * @param deadlineMargin milliseconds before the deadline at which the best candidate so far is taken
+     */
+    public StrategySelector(List<AnswerStrategy> strategies, Executor executor, double qualityThreshold,
+                    long deadlineMargin) {
+        this.strategies = new ArrayList<>(strategies);
+        this.executor = executor;
+        this.qualityThreshold = qualityThreshold;
+        this.deadlineMargin = deadlineMargin;
+        this.wins = new AtomicLongArray(strategies.size());
+    }
+
+    /**
+     * @return the best answer found, or null if no strategy had one
+     * @throws InterruptedException if the computation is cancelled
+     */
+    public AnswerAndResourcesAndSummaries select(final String qid, final String title, final String body,
+                    final String category) throws InterruptedException {
+        CompletionService<Candidate> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Candidate>> running = new ArrayList<>(strategies.size());
+        for (int i = 0; i < strategies.size(); i++) {
+            final int index = i;
+            final AnswerStrategy strategy = strategies.get(i);
+            running.add(completion.submit(new Callable<Candidate>() {
+                @Override
+                public Candidate call() throws Exception {
+                    AnswerStrategy.Candidate candidate = strategy.answer(qid, title, body, category);
+                    return candidate == null ? null : new Candidate(index, candidate);
+                }
+            }));
+        }
+
+        Candidate best = null;
+        try {
+            for (int pending = running.size(); pending > 0; pending--) {
+                long wait = TrecLiveQaDemoServer.remainingMillis() - deadlineMargin;
+                Future<Candidate> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    logger.info("Deadline near, taking the best candidate so far for QID: " + qid);
+                    break;
+                }
+                Candidate candidate;
+                try {
+                    candidate = done.get();
+                } catch (ExecutionException e) {
+                    logger.warning("Answer strategy failed: " + e.getCause());
+                    continue;
+                }
+                if (candidate != null && (best == null || candidate.quality > best.quality)) {
+                    best = candidate;
+                    TrecLiveQaDemoServer.offerPartialAnswer(best.answer);
+                    if (best.quality >= qualityThreshold) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (Future<Candidate> future : running) {
+                future.cancel(true);
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        wins.incrementAndGet(best.strategy);
+        logger.info("Taking the " + strategies.get(best.strategy).name() + " answer for QID: " + qid);
+        return best.answer;
+    }
+
+    /**
+     * @return how often each strategy's answer was selected, in the order the strategies were given
+     */
+    public long[] getWins() {
+        long[] result = new long[wins.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = wins.get(i);
+        }
+        return result;
+    }
+
+    public List<AnswerStrategy> getStrategies() {
+        return new ArrayList<>(strategies);
+    }
+
+    private static class Candidate {
+        final int strategy;
+        final AnswerAndResourcesAndSummaries answer;
+        final double quality;
+
+        Candidate(int strategy, AnswerStrategy.Candidate candidate) {
+            this.strategy = strategy;
+            this.answer = candidate.answer();
+            this.quality = candidate.quality();
+        }
+    }
+
+}
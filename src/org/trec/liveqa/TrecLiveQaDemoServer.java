@@ -1,21 +1,35 @@
 package org.trec.liveqa;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
 import fi.iki.elonen.NanoHTTPD;
 
 /**
@@ -62,94 +76,709 @@ public class TrecLiveQaDemoServer extends NanoHTTPD {
     public static final TimeZone WORKING_TIME_ZONE = TimeZone.getTimeZone(WORKING_TIME_ZONE_ID);
     public static final Charset WORKING_CHARSET = StandardCharsets.UTF_8;
 
+    /**
+     * System property: number of selector threads; when positive, the non-blocking connection engine is used.
+     */
+    public static final String SELECTOR_THREADS_PROPERTY = "liveqa.selectorThreads";
+    /**
+     * System property: number of worker threads; when positive, a bounded worker pool replaces thread-per-connection.
+     */
+    public static final String WORKER_THREADS_PROPERTY = "liveqa.workerThreads";
+    /**
+     * System property: how many connections (or requests, with the non-blocking engine) may wait for a worker.
+     */
+    public static final String WORKER_QUEUE_PROPERTY = "liveqa.workerQueue";
+    /**
+     * System property: what to do when the worker queue is full, one of {@link BoundedAsyncRunner.RejectionPolicy}.
+     */
+    public static final String REJECTION_POLICY_PROPERTY = "liveqa.rejectionPolicy";
+    public static final int DEFAULT_WORKER_QUEUE = 64;
+    /**
+     * System property: when true (and no worker pool is configured), connections run on virtual threads.
+     */
+    public static final String VIRTUAL_THREADS_PROPERTY = "liveqa.virtualThreads";
+    /**
+     * System property: maximum number of open connections; further clients wait until one closes.
+     */
+    public static final String MAX_CONNECTIONS_PROPERTY = "liveqa.maxConnections";
+    /**
+     * System property: milliseconds an idle keep-alive connection is kept open. Connections idle for more than
+     * a second are closed earlier once three quarters of {@link #MAX_CONNECTIONS_PROPERTY} are in use.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "liveqa.idleTimeout";
+    public static final int PRESSURE_IDLE_TIMEOUT = 1000;
+    /**
+     * System property: number of threads computing answers, which take pending questions earliest deadline first
+     * (see {@link DeadlineScheduler}); by default a thread is started per question.
+     */
+    public static final String ANSWER_THREADS_PROPERTY = "liveqa.answerThreads";
+    /**
+     * System property: milliseconds from receiving a question until it is answered with whatever is available.
+     */
+    public static final String ANSWER_DEADLINE_PROPERTY = "liveqa.answerDeadline";
+    /**
+     * Leaves headroom under the track's one minute limit for the network and the other side's clock.
+     */
+    public static final long DEFAULT_ANSWER_DEADLINE = 50000;
+    /**
+     * System property: number of keys in the answer cache (an answer takes two, its qid and its text); 0 disables it.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "liveqa.cacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    /**
+     * System property: milliseconds a cached answer is reused.
+     */
+    public static final String CACHE_TTL_PROPERTY = "liveqa.cacheTtl";
+    public static final long DEFAULT_CACHE_TTL = 24 * 60 * 60 * 1000L;
+    /**
+     * System property: file the request log is appended to; by default it goes to standard error.
+     */
+    public static final String REQUEST_LOG_PROPERTY = "liveqa.requestLog";
+    /**
+     * System property: fraction of request log records that include the question and answer texts.
+     */
+    public static final String REQUEST_LOG_SAMPLE_RATE_PROPERTY = "liveqa.requestLogSampleRate";
+    public static final double DEFAULT_REQUEST_LOG_SAMPLE_RATE = 0.01;
+    public static final int REQUEST_LOG_CAPACITY = 4096;
+    /**
+     * System property: questions file replayed by {@link #main} to warm the server up before it starts, see
+     * {@link WarmUp}; empty for no warm-up.
+     */
+    public static final String WARMUP_FILE_PROPERTY = "liveqa.warmupFile";
+    public static final String DEFAULT_WARMUP_FILE = "data/0420-dryrun-questions.tsv";
+    /**
+     * Answer deadline while warming up, if shorter than the server's: the warm-up answers are thrown away, so a
+     * slow computation need not run to the end.
+     */
+    public static final long WARMUP_ANSWER_DEADLINE = 1000;
+    /**
+     * Path serving the {@link ServerMetrics}, ahead of the question handling.
+     */
+    public static final String METRICS_PATH = "/metrics";
+    /**
+     * Path taking a batch of questions, see {@link #batchResponse(IHTTPSession)}.
+     */
+    public static final String BATCH_PATH = "/batch";
+    /**
+     * System property: number of questions of a batch answered at the same time; by default the number of cores.
+     */
+    public static final String BATCH_PARALLELISM_PROPERTY = "liveqa.batchParallelism";
+
     private static final Logger logger = Logger.getLogger(TrecLiveQaDemoServer.class.getName());
 
+    /**
+     * Computes answers, so connection threads only read questions and write answers.
+     */
+    private Executor answerExecutor = newAnswerExecutor(0);
+    private long answerDeadline = DEFAULT_ANSWER_DEADLINE;
+    private final AtomicLong deadlineHits = new AtomicLong();
+    /**
+     * Questions being answered, by "q:" qid and by "t:" normalized text.
+     */
+    private final ConcurrentHashMap<String, QuestionContext> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedQuestions = new AtomicLong();
+    private AnswerCache<AnswerAndResourcesAndSummaries> answerCache = new AnswerCache<>(DEFAULT_CACHE_SIZE,
+                    DEFAULT_CACHE_TTL);
+    private ServerMetrics metrics = new ServerMetrics();
+    /**
+     * Whether a subclass overrides {@link #serve(IHTTPSession)}, which then takes every request.
+     */
+    private final boolean serveOverridden;
+    private RequestLog requestLog = new RequestLog(System.err, REQUEST_LOG_CAPACITY, DEFAULT_REQUEST_LOG_SAMPLE_RATE);
+    private int batchParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Fires the deadlines of all servers; only ever runs the quick fallback, never answers.
+     */
+    private static final ScheduledExecutorService DEADLINE_TIMER = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "LiveQA Deadline Timer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
     public TrecLiveQaDemoServer(String hostname, int port) {
         super(hostname, port);
+        serveOverridden = overridesServe(getClass());
     }
 
     public TrecLiveQaDemoServer(int port) {
         super(port);
+        serveOverridden = overridesServe(getClass());
+    }
+
+    private static boolean overridesServe(Class<?> serverClass) {
+        try {
+            return serverClass.getMethod("serve", IHTTPSession.class).getDeclaringClass() != TrecLiveQaDemoServer.class;
+        } catch (NoSuchMethodException e) {
+            // serve is public, so every subclass has it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setAnswerExecutor(Executor answerExecutor) {
+        this.answerExecutor = answerExecutor;
+    }
+
+    public Executor getAnswerExecutor() {
+        return answerExecutor;
+    }
+
+    /**
+     * @return milliseconds a question needs at least for its computation to be worth starting, see
+     *         {@link DeadlineScheduler}: the median computation time so far
+     */
+    protected long minimumAnswerBudget() {
+        return metrics.answer.quantile(0.5) / 1000;
+    }
+
+    /**
+     * @param answerDeadline milliseconds from receiving a question until the answer computation is interrupted
+     *            and the question answered with the best partial answer, or not answered.
+     */
+    public void setAnswerDeadline(long answerDeadline) {
+        this.answerDeadline = answerDeadline;
     }
 
+    /**
+     * @param answerCache cache of computed answers, or null for none
+     */
+    public void setAnswerCache(AnswerCache<AnswerAndResourcesAndSummaries> answerCache) {
+        this.answerCache = answerCache;
+    }
+
+    public AnswerCache<AnswerAndResourcesAndSummaries> getAnswerCache() {
+        return answerCache;
+    }
+
+    /**
+     * @param requestLog log of answered requests, or null for none; the previous one is closed
+     */
+    public void setRequestLog(RequestLog requestLog) {
+        if (this.requestLog != null) {
+            this.requestLog.close();
+        }
+        this.requestLog = requestLog;
+    }
+
+    public RequestLog getRequestLog() {
+        return requestLog;
+    }
+
+    /**
+     * @param batchParallelism number of questions of a batch answered at the same time
+     */
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = Math.max(1, batchParallelism);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of requests that waited for an identical question's answer instead of computing it.
+     */
+    public long getCoalescedQuestions() {
+        return coalescedQuestions.get();
+    }
+
+    /**
+     * @return the number of questions answered at the deadline rather than by the answer computation.
+     */
+    public long getDeadlineHits() {
+        return deadlineHits.get();
+    }
+
+    /**
+     * Replays the questions until latency is stable, before the server is started; see {@link WarmUp}. The
+     * answer cache and the request log are left out, the answer deadline is at most
+     * {@link #WARMUP_ANSWER_DEADLINE}, and the metrics start afresh afterwards.
+     * 
+     * @param questions as arrays of qid, title, body and category
+     */
+    public void warmUp(List<String[]> questions) throws IOException {
+        AnswerCache<AnswerAndResourcesAndSummaries> cache = answerCache;
+        RequestLog log = requestLog;
+        long deadline = answerDeadline;
+        answerCache = null;
+        requestLog = null;
+        answerDeadline = Math.min(deadline, WARMUP_ANSWER_DEADLINE);
+        try {
+            new WarmUp(this).run(questions);
+        } finally {
+            answerCache = cache;
+            requestLog = log;
+            answerDeadline = deadline;
+            metrics = new ServerMetrics();
+            deadlineHits.set(0);
+            coalescedQuestions.set(0);
+        }
+    }
+
+    /**
+     * @param threads number of threads; 0 for a thread per question (idle ones are reused).
+     */
+    protected static ExecutorService newAnswerExecutor(int threads) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LiveQA Answer (#" + count.incrementAndGet() + ")");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        return threads > 0 ? Executors.newFixedThreadPool(threads, factory) : Executors.newCachedThreadPool(factory);
+    }
+
+    /**
+     * Stops the server and writes out the request log.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        if (requestLog != null) {
+            requestLog.close();
+        }
+    }
+
+    /**
+     * Answers the request and waits for the answer. Subclasses may still override this, as before: the server
+     * then serves every request through it, on the connection's thread (see {@link #serveAsync}).
+     */
     @Override
     public Response serve(IHTTPSession session) {
-        // extract get time from system
-        final long getTime = System.currentTimeMillis();
-        logger.info("Got request at " + getTime);
+        return serveQuestion(session).join();
+    }
+
+    /**
+     * Reads the question on the connection's thread and computes the answer on the answer executor, under the
+     * answer deadline; if a subclass overrides {@link #serve(IHTTPSession)}, returns its response instead.
+     */
+    @Override
+    public CompletableFuture<Response> serveAsync(IHTTPSession session) {
+        if (serveOverridden) {
+            return CompletableFuture.completedFuture(serve(session));
+        }
+        return serveQuestion(session);
+    }
+
+    private CompletableFuture<Response> serveQuestion(IHTTPSession session) {
+        if (METRICS_PATH.equals(session.getUri())) {
+            return CompletableFuture.completedFuture(new Response(Response.Status.OK, ServerMetrics.CONTENT_TYPE,
+                            metrics.render(this)));
+        }
+        if (BATCH_PATH.equals(session.getUri())) {
+            return CompletableFuture.completedFuture(batchResponse(session));
+        }
+        // the question's time budget runs from its arrival, including any wait for a connection thread
+        final long getTime = System.currentTimeMillis() - (System.nanoTime() - session.getReceivedNanos()) / 1000000;
 
         // read question data
         Map<String, String> files = new HashMap<>();
         Method method = session.getMethod();
         if (Method.POST.equals(method)) {
             try {
+                long parseStart = System.nanoTime();
                 session.parseBody(files);
+                metrics.parseBody.recordNanos(System.nanoTime() - parseStart);
             } catch (IOException ioe) {
-                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
-                                "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                return CompletableFuture.completedFuture(new Response(Response.Status.INTERNAL_ERROR,
+                                MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage()));
             } catch (ResponseException re) {
-                return new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                return CompletableFuture.completedFuture(new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage()));
             }
         }
         Map<String, String> params = session.getParms();
-        String qid = params.get(QUESTION_ID_PARAMETER_NAME);
-        String title = params.get(QUESTION_TITLE_PARAMETER_NAME);
-        String body = params.get(QUESTION_BODY_PARAMETER_NAME);
-        String category = params.get(QUESTION_CATEGORY_PARAMETER_NAME);
-        logger.info("QID: " + qid);
+        final String qid = params.get(QUESTION_ID_PARAMETER_NAME);
+        final String title = params.get(QUESTION_TITLE_PARAMETER_NAME);
+        final String body = params.get(QUESTION_BODY_PARAMETER_NAME);
+        final String category = params.get(QUESTION_CATEGORY_PARAMETER_NAME);
+        final long readTime = System.currentTimeMillis();
+        // a failed computation keeps failing the request, as serve() returning null always did
+        return answerQuestion(qid, title, body, category, getTime, readTime,
+                        answer -> answerResponse(qid, answer, getTime));
+    }
+
+    /**
+     * Answers one question, from the cache, by a computation, or at the deadline or when the computation is
+     * dropped.
+     * 
+     * @param render renders the answer, or null if the question is not answered
+     * @return the rendered answer; null if the computation failed
+     */
+    private <T> CompletableFuture<T> answerQuestion(final String qid, final String title, final String body,
+                    String category, final long getTime, final long readTime,
+                    final Function<AnswerAndResourcesAndSummaries, T> render) {
+        metrics.questionStarted();
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        if (answerCache != null) {
+            AnswerAndResourcesAndSummaries cached = answerCache.get(qid, title, body);
+            if (cached != null) {
+                complete(result, render, qid, title, body, cached, RequestLog.Outcome.CACHED, false, getTime,
+                                readTime);
+                return result;
+            }
+        }
+
+        final QuestionContext context = joinQuestion(qid, title, body, category, getTime + answerDeadline, result);
+        final boolean coalesced = context.owner() != result;
+        // each request reports its own qid and time
+        context.answer().whenComplete((answer, failure) -> {
+            if (failure instanceof CancellationException) {
+                // dropped by the scheduler: there is no point in waiting for the deadline
+                complete(result, render, qid, title, body, context.partialAnswer(), RequestLog.Outcome.DROPPED,
+                                coalesced, getTime, readTime);
+            } else {
+                complete(result, render, qid, title, body, answer, failure == null ? RequestLog.Outcome.COMPUTED
+                                : RequestLog.Outcome.FAILED, coalesced, getTime, readTime);
+            }
+        });
+        final ScheduledFuture<?> deadline = DEADLINE_TIMER.schedule(() -> {
+            if (complete(result, render, qid, title, body, context.partialAnswer(), RequestLog.Outcome.DEADLINE,
+                            coalesced, getTime, readTime)) {
+                deadlineHits.incrementAndGet();
+                context.leave();
+            }
+        }, Math.max(0, getTime + answerDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        result.whenComplete((response, failure) -> deadline.cancel(false));
+        return result;
+    }
+
+    /**
+     * Completes the request with the rendered answer, unless it was already completed, and logs it.
+     * 
+     * @return whether this completed the request
+     */
+    private <T> boolean complete(CompletableFuture<T> result, Function<AnswerAndResourcesAndSummaries, T> render,
+                    String qid, String title, String body, AnswerAndResourcesAndSummaries answer,
+                    RequestLog.Outcome outcome, boolean coalesced, long getTime, long readTime) {
+        if (result.isDone()) {
+            return false;
+        }
+        final long answeredTime = System.currentTimeMillis();
+        long serializeStart = System.nanoTime();
+        T rendered = outcome == RequestLog.Outcome.FAILED ? null : render.apply(answer);
+        if (!result.complete(rendered)) {
+            return false;
+        }
+        metrics.serialize.recordNanos(System.nanoTime() - serializeStart);
+        metrics.questionFinished(outcome);
+        logRequest(qid, title, body, answer, outcome, coalesced, getTime, readTime, answeredTime);
+        return true;
+    }
+
+    private void logRequest(String qid, String title, String body, AnswerAndResourcesAndSummaries answer,
+                    RequestLog.Outcome outcome, boolean coalesced, long getTime, long readTime, long answeredTime) {
+        RequestLog log = requestLog;
+        if (log != null) {
+            String text = answer != null ? answer.answer() : null;
+            String resources = answer != null ? answer.resources() : null;
+            log.log(qid, outcome, coalesced, getTime, readTime, answeredTime, System.currentTimeMillis(),
+                            answer != null, text != null ? text.length() : 0, resources != null ? resources.length() : 0,
+                            title, body, text);
+        }
+    }
+
+    /**
+     * Answers a batch of questions, posted as tab-separated lines (see {@link #parseQuestions(String)}), so a
+     * questions file such as <code>data/0420-dryrun-questions.tsv</code> can be posted as it is, with a content
+     * type that is not a form's:
+     * <p/>
+     * <code>curl -H "Content-Type: text/tab-separated-values" --data-binary @questions.tsv host:port/batch</code>
+     * <p/>
+     * The questions are answered in parallel, each under its own deadline and through the cache as usual, and the
+     * response streams their answer elements, under a single root, in the order they complete. Sending the
+     * response holds a connection thread until the last answer.
+     */
+    protected Response batchResponse(IHTTPSession session) {
+        if (!Method.POST.equals(session.getMethod())) {
+            return new Response(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Post the questions to "
+                            + BATCH_PATH);
+        }
+        Map<String, String> files = new HashMap<>();
+        try {
+            long parseStart = System.nanoTime();
+            session.parseBody(files);
+            metrics.parseBody.recordNanos(System.nanoTime() - parseStart);
+        } catch (IOException ioe) {
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: "
+                            + ioe.getMessage());
+        } catch (ResponseException re) {
+            return new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+        }
+        String data = files.get("postData");
+        List<String[]> questions;
+        try {
+            questions = data != null ? parseQuestions(data) : new ArrayList<String[]>();
+        } catch (IllegalArgumentException e) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "BAD REQUEST: " + e.getMessage());
+        }
 
+        AnswerStream stream = new AnswerStream(questions.size());
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(batchParallelism, questions.size()); i++) {
+            answerBatch(questions, next, stream);
+        }
+        Response response = new Response(Response.Status.OK, MIME_HTML, stream);
+        response.setChunkedTransfer(true);
+        return response;
+    }
+
+    /**
+     * Reads tab-separated lines of qid, title, body and category, the format of the questions files in
+     * <code>data</code>; further fields, empty lines and a header line starting with "QID" are skipped.
+     * 
+     * @return the questions, as arrays of qid, title, body and category
+     * @throws IllegalArgumentException if a line has no qid or no title
+     */
+    public static List<String[]> parseQuestions(String tsv) {
+        List<String[]> questions = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : tsv.split("\r?\n")) {
+            lineNumber++;
+            if (line.isEmpty() || (lineNumber == 1 && line.startsWith("QID\t"))) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields[0].isEmpty() || fields.length < 2) {
+                throw new IllegalArgumentException("line " + lineNumber
+                                + " is not a tab-separated qid, title, body and category");
+            }
+            questions.add(new String[] {fields[0], fields[1], fields.length > 2 ? fields[2] : "",
+                fields.length > 3 ? fields[3] : ""});
+        }
+        return questions;
+    }
+
+    /**
+     * Answers the next question of a batch, and then the next, until none is left; questions answered right
+     * away are done in a loop rather than by recursion.
+     */
+    private void answerBatch(final List<String[]> questions, final AtomicInteger next, final AnswerStream stream) {
+        int i;
+        while ((i = next.getAndIncrement()) < questions.size()) {
+            final String[] question = questions.get(i);
+            final String qid = question[0];
+            final long getTime = System.currentTimeMillis();
+            CompletableFuture<byte[]> answer = answerQuestion(qid, question[1], question[2], question[3], getTime,
+                            getTime, a -> answerFragment(qid, a, getTime));
+            if (!answer.isDone()) {
+                answer.whenComplete((fragment, failure) -> {
+                    stream.add(fragment != null ? fragment : answerFragment(qid, null, getTime));
+                    answerBatch(questions, next, stream);
+                });
+                return;
+            }
+            byte[] fragment = answer.getNow(null);
+            stream.add(fragment != null ? fragment : answerFragment(qid, null, getTime));
+        }
+    }
+
+    /**
+     * Joins the computation already running for the same qid or the same question text, or else starts one.
+     * 
+     * @param owner identifies the request, see {@link QuestionContext#owner()}
+     */
+    private QuestionContext joinQuestion(String qid, final String title, final String body, final String category,
+                    long deadline, Object owner) {
+        String text = AnswerCache.normalize(title, body);
+        String qidKey = qid != null ? "q:" + qid : null;
+        String textKey = !text.isEmpty() ? "t:" + text : null;
+        while (true) {
+            QuestionContext running = qidKey != null ? inFlight.get(qidKey) : null;
+            if (running == null && textKey != null) {
+                running = inFlight.get(textKey);
+            }
+            if (running != null) {
+                if (running.join(deadline)) {
+                    coalescedQuestions.incrementAndGet();
+                    return running;
+                }
+                retire(running);
+                continue;
+            }
+            final QuestionContext context = new QuestionContext(qid, deadline, owner, qidKey, textKey);
+            if (qidKey != null && inFlight.putIfAbsent(qidKey, context) != null) {
+                continue;
+            }
+            if (textKey != null) {
+                // losing this race only means the identical question is computed twice
+                inFlight.putIfAbsent(textKey, context);
+            }
+            context.join(deadline);
+            FutureTask<AnswerAndResourcesAndSummaries> task = new FutureTask<AnswerAndResourcesAndSummaries>(
+                            () -> answer(context, title, body, category)) {
+                @Override
+                protected void done() {
+                    retire(context);
+                    if (isCancelled()) {
+                        // answers the requests still waiting, if the scheduler dropped the computation
+                        context.answer().cancel(false);
+                    } else {
+                        try {
+                            context.answer().complete(get());
+                        } catch (ExecutionException e) {
+                            context.answer().completeExceptionally(e.getCause());
+                        } catch (InterruptedException e) {
+                            // cannot happen, the task is done
+                        }
+                    }
+                }
+            };
+            context.setComputation(task);
+            if (answerExecutor instanceof DeadlineScheduler) {
+                ((DeadlineScheduler) answerExecutor).execute(task, context::deadline);
+            } else {
+                answerExecutor.execute(task);
+            }
+            return context;
+        }
+    }
+
+    private void retire(QuestionContext context) {
+        for (String key : context.keys) {
+            if (key != null) {
+                inFlight.remove(key, context);
+            }
+        }
+    }
+
+    private AnswerAndResourcesAndSummaries answer(QuestionContext context, String title, String body, String category)
+                    throws Exception {
         // "get answer"
         AnswerAndResourcesAndSummaries answerAndResources = null;
+        QuestionContext.CURRENT.set(context);
+        long answerStart = System.nanoTime();
         try {
-            answerAndResources = getAnswerAndResourcesAndSummaries(qid, title, body, category);
+            answerAndResources = getAnswerAndResourcesAndSummaries(context.qid(), title, body, category);
+            metrics.answer.recordNanos(System.nanoTime() - answerStart);
+        } catch (InterruptedException e) {
+            // every waiting request has already been answered at its deadline
+            throw e;
         } catch (Exception e) {
             logger.warning("Failed to retrieve answer and resources");
             e.printStackTrace();
-            return null;
+            throw e;
+        } finally {
+            QuestionContext.CURRENT.remove();
+        }
+        if (answerAndResources != null && answerCache != null) {
+            answerCache.put(context.qid(), title, body, answerAndResources);
         }
+        return answerAndResources;
+    }
 
-        // initialize response document
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder;
-        try {
-            docBuilder = docFactory.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            logger.warning("Could not build XML document");
-            e.printStackTrace();
-            return null;
+    /**
+     * For use by {@link #getAnswerAndResourcesAndSummaries}: records the best answer so far, which is returned
+     * if the answer deadline expires before the computation finishes.
+     */
+    protected static void offerPartialAnswer(AnswerAndResourcesAndSummaries partialAnswer) {
+        QuestionContext context = QuestionContext.CURRENT.get();
+        if (context != null) {
+            context.offerPartialAnswer(partialAnswer);
         }
-        Document doc = docBuilder.newDocument();
-        Element rootElement = doc.createElement(ANSWER_ROOT_ELEMENT_NAME);
-        doc.appendChild(rootElement);
-        Element answerElement = doc.createElement(ANSWER_BASE_ELEMENT_NAME);
-        rootElement.appendChild(answerElement);
+    }
 
-        // populate fields
-        if (answerAndResources != null) {
-            answerElement.setAttribute(ANSWER_ANSWERED_YES_NO_ATTRIBUTE_NAME, YES);
-            XmlUtils.addElementWithText(doc, answerElement, ANSWER_CONTENT_ELEMENT_NAME, answerAndResources.answer());
-            XmlUtils.addElementWithText(doc, answerElement, ANSWER_RESOURCES_ELEMENT_NAME,
-                            answerAndResources.resources());
-            XmlUtils.addElementWithText(doc, answerElement, TITLE_FOCI, answerAndResources.titleFoci());
-            XmlUtils.addElementWithText(doc, answerElement, BODY_FOCI, answerAndResources.bodyFoci());
-            XmlUtils.addElementWithText(doc, answerElement, QUESTION_SUMMARY, answerAndResources.summary());
-            logger.info("Response: " + answerAndResources.answer() + "; Resources: " + answerAndResources.resources()
-                            + "; Title foci: " + answerAndResources.titleFoci() + "; Body foci: "
-                            + answerAndResources.bodyFoci() + "; Summary: " + answerAndResources.summary());
-        } else {
-            answerElement.setAttribute(ANSWER_ANSWERED_YES_NO_ATTRIBUTE_NAME, NO);
-            XmlUtils.addElementWithText(doc, answerElement, ANSWER_WHY_NOT_ANSWERED_ELEMENT_NAME, EXCUSE);
-            logger.info("No answer given: " + EXCUSE);
+    /**
+     * For use by {@link #getAnswerAndResourcesAndSummaries}: milliseconds left until the answer deadline.
+     */
+    protected static long remainingMillis() {
+        QuestionContext context = QuestionContext.CURRENT.get();
+        return context == null ? Long.MAX_VALUE : context.deadline() - System.currentTimeMillis();
+    }
+
+    /**
+     * Answers turned-away questions with the "not answered" XML, so that they are still within the time
+     * limit; falls back to a 503 if the question could not be read.
+     */
+    @Override
+    protected Response overloadResponse(IHTTPSession session) {
+        final long getTime = System.currentTimeMillis();
+        if (session != null) {
+            try {
+                if (Method.POST.equals(session.getMethod())) {
+                    session.parseBody(new HashMap<String, String>());
+                }
+                String qid = session.getParms().get(QUESTION_ID_PARAMETER_NAME);
+                if (qid != null) {
+                    final long readTime = System.currentTimeMillis();
+                    metrics.questionStarted();
+                    Response response = answerResponse(qid, null, getTime);
+                    metrics.questionFinished(RequestLog.Outcome.OVERLOADED);
+                    logRequest(qid, session.getParms().get(QUESTION_TITLE_PARAMETER_NAME), session.getParms().get(
+                                    QUESTION_BODY_PARAMETER_NAME), null, RequestLog.Outcome.OVERLOADED, false, getTime,
+                                    readTime, readTime);
+                    return response;
+                }
+            } catch (IOException | ResponseException e) {
+                logger.warning("Could not read rejected question: " + e.getMessage());
+            }
         }
+        return super.overloadResponse(session);
+    }
+
+    @Override
+    protected void onResponseSent(IHTTPSession session, Response response, long receivedNanos, long parsedNanos,
+                    long sendNanos, long sentNanos) {
+        metrics.responseSent(response.getStatus().getRequestStatus());
+        if (METRICS_PATH.equals(session.getUri())) {
+            // the scrapes are not questions
+            return;
+        }
+        metrics.acceptToParse.recordNanos(parsedNanos - receivedNanos);
+        metrics.send.recordNanos(sentNanos - sendNanos);
+        metrics.total.recordNanos(sentNanos - receivedNanos);
+    }
+
+    /**
+     * Builds the XML response for a question.
+     * 
+     * @param qid unique question id
+     * @param answerAndResources the answer, or null if the question is not answered
+     * @param getTime time the question was received, for the reported time
+     * @return the response
+     */
+    protected Response answerResponse(String qid, AnswerAndResourcesAndSummaries answerAndResources, long getTime) {
+        AnswerXmlWriter writer = AnswerXmlWriter.obtain();
+        writeAnswer(writer, qid, answerAndResources, getTime);
+        return writer.toResponse();
+    }
 
+    /**
+     * Builds the answer element for a question of a batch, see {@link #answerResponse}.
+     */
+    private byte[] answerFragment(String qid, AnswerAndResourcesAndSummaries answerAndResources, long getTime) {
+        AnswerXmlWriter writer = AnswerXmlWriter.obtainFragment();
+        writeAnswer(writer, qid, answerAndResources, getTime);
+        return writer.toFragment();
+    }
+
+    private void writeAnswer(AnswerXmlWriter writer, String qid, AnswerAndResourcesAndSummaries answerAndResources,
+                    long getTime) {
         final long timeElapsed = System.currentTimeMillis() - getTime;
-        answerElement.setAttribute(ANSWER_PARTICIPANT_ID_ATTRIBUTE_NAME, participantId());
-        answerElement.setAttribute(ANSWER_REPORTED_TIME_MILLISECONDS_ATTRIBUTE_NAME, Long.toString(timeElapsed));
-        answerElement.setAttribute(QUESTION_ID_PARAMETER_NAME, qid);
-        logger.info("Internal time logged: " + timeElapsed);
+        // attributes in name order, as the DOM serializer used to write them
+        writer.startElement(ANSWER_BASE_ELEMENT_NAME, ANSWER_ANSWERED_YES_NO_ATTRIBUTE_NAME,
+                        answerAndResources != null ? YES : NO, ANSWER_PARTICIPANT_ID_ATTRIBUTE_NAME, participantId(),
+                        QUESTION_ID_PARAMETER_NAME, qid, ANSWER_REPORTED_TIME_MILLISECONDS_ATTRIBUTE_NAME,
+                        Long.toString(timeElapsed));
 
-        String resp = XmlUtils.writeDocumentToString(doc);
-        return new Response(resp);
+        // populate fields
+        if (answerAndResources != null) {
+            writer.addElementWithText(ANSWER_CONTENT_ELEMENT_NAME, answerAndResources.answer());
+            writer.addElementWithText(ANSWER_RESOURCES_ELEMENT_NAME, answerAndResources.resources());
+            writer.addElementWithText(TITLE_FOCI, answerAndResources.titleFoci());
+            writer.addElementWithText(BODY_FOCI, answerAndResources.bodyFoci());
+            writer.addElementWithText(QUESTION_SUMMARY, answerAndResources.summary());
+        } else {
+            writer.addElementWithText(ANSWER_WHY_NOT_ANSWERED_ELEMENT_NAME, EXCUSE);
+        }
     }
 
     protected String participantId() {
@@ -231,11 +860,159 @@ public class TrecLiveQaDemoServer extends NanoHTTPD {
 
     }
 
+    /**
+     * State of a question being answered, shared by the answer computation and the requests waiting for it: the
+     * first request for a question starts the computation, and identical questions arriving meanwhile join it.
+     */
+    protected static class QuestionContext {
+
+        static final ThreadLocal<QuestionContext> CURRENT = new ThreadLocal<>();
+
+        private final String qid;
+        private final Object owner;
+        private final String[] keys;
+        private final CompletableFuture<AnswerAndResourcesAndSummaries> answer = new CompletableFuture<>();
+        private volatile long deadline;
+        private volatile AnswerAndResourcesAndSummaries partialAnswer;
+        private Future<?> computation;
+        private int waiters;
+        private boolean abandoned;
+
+        public QuestionContext(String qid, long deadline, Object owner, String... keys) {
+            this.qid = qid;
+            this.deadline = deadline;
+            this.owner = owner;
+            this.keys = keys;
+        }
+
+        /**
+         * @return the qid the answer is computed for (that of the first request)
+         */
+        public String qid() {
+            return qid;
+        }
+
+        /**
+         * @return the request that started the computation
+         */
+        public Object owner() {
+            return owner;
+        }
+
+        /**
+         * @return the latest deadline of the waiting requests, in {@link System#currentTimeMillis()} time
+         */
+        public long deadline() {
+            return deadline;
+        }
+
+        public void offerPartialAnswer(AnswerAndResourcesAndSummaries answer) {
+            partialAnswer = answer;
+        }
+
+        public AnswerAndResourcesAndSummaries partialAnswer() {
+            return partialAnswer;
+        }
+
+        /**
+         * @return completes with the answer, possibly null, when the computation finishes
+         */
+        public CompletableFuture<AnswerAndResourcesAndSummaries> answer() {
+            return answer;
+        }
+
+        /**
+         * Adds a waiting request.
+         * 
+         * @return false if the computation was already abandoned by all its waiters
+         */
+        synchronized boolean join(long requestDeadline) {
+            if (abandoned) {
+                return false;
+            }
+            waiters++;
+            deadline = Math.max(deadline, requestDeadline);
+            return true;
+        }
+
+        /**
+         * Removes a request that gave up at its deadline; the computation is interrupted once none is left.
+         */
+        synchronized void leave() {
+            if (--waiters == 0 && !answer.isDone()) {
+                abandoned = true;
+                if (computation != null) {
+                    computation.cancel(true);
+                }
+            }
+        }
+
+        synchronized void setComputation(Future<?> computation) {
+            this.computation = computation;
+            if (abandoned) {
+                computation.cancel(true);
+            }
+        }
+
+    }
+
     // ---------------------------------------------
 
+    /**
+     * Applies the server settings given as system properties (see the <code>*_PROPERTY</code> constants).
+     */
+    protected static void configure(TrecLiveQaDemoServer server) {
+        server.setSelectorThreads(Integer.getInteger(SELECTOR_THREADS_PROPERTY, 0));
+        int workerThreads = Integer.getInteger(WORKER_THREADS_PROPERTY, 0);
+        if (workerThreads > 0) {
+            server.setAsyncRunner(new BoundedAsyncRunner(workerThreads, Integer.getInteger(WORKER_QUEUE_PROPERTY,
+                            DEFAULT_WORKER_QUEUE), BoundedAsyncRunner.RejectionPolicy.valueOf(System.getProperty(
+                            REJECTION_POLICY_PROPERTY, BoundedAsyncRunner.RejectionPolicy.RESPOND.name()))));
+        } else if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+            if (!VirtualThreadAsyncRunner.isSupported()) {
+                logger.warning("Virtual threads are not available on this runtime, using platform threads");
+            }
+            server.setAsyncRunner(new VirtualThreadAsyncRunner());
+        }
+        server.setAnswerDeadline(Long.getLong(ANSWER_DEADLINE_PROPERTY, DEFAULT_ANSWER_DEADLINE));
+        int cacheSize = Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+        server.setAnswerCache(cacheSize > 0 ? new AnswerCache<AnswerAndResourcesAndSummaries>(cacheSize, Long.getLong(
+                        CACHE_TTL_PROPERTY, DEFAULT_CACHE_TTL)) : null);
+        String requestLogFile = System.getProperty(REQUEST_LOG_PROPERTY);
+        double sampleRate = Double.parseDouble(System.getProperty(REQUEST_LOG_SAMPLE_RATE_PROPERTY, Double.toString(
+                        DEFAULT_REQUEST_LOG_SAMPLE_RATE)));
+        try {
+            server.setRequestLog(new RequestLog(requestLogFile != null ? new FileOutputStream(requestLogFile, true)
+                            : System.err, REQUEST_LOG_CAPACITY, sampleRate));
+        } catch (IOException e) {
+            logger.warning("Could not open request log " + requestLogFile + ": " + e.getMessage());
+        }
+        server.setBatchParallelism(Integer.getInteger(BATCH_PARALLELISM_PROPERTY, Runtime.getRuntime()
+                        .availableProcessors()));
+        int answerThreads = Integer.getInteger(ANSWER_THREADS_PROPERTY, 0);
+        if (answerThreads > 0) {
+            server.setAnswerExecutor(new DeadlineScheduler(answerThreads, server::minimumAnswerBudget));
+        }
+        int maxConnections = Integer.getInteger(MAX_CONNECTIONS_PROPERTY, 0);
+        server.setMaxConnections(maxConnections);
+        int idleTimeout = Integer.getInteger(IDLE_TIMEOUT_PROPERTY, SOCKET_READ_TIMEOUT);
+        server.setIdlePolicy(maxConnections > 0
+                        ? new DefaultIdlePolicy(idleTimeout, maxConnections * 3 / 4, Math.min(idleTimeout, PRESSURE_IDLE_TIMEOUT))
+                        : new DefaultIdlePolicy(idleTimeout));
+    }
+
     public static void main(String[] args) throws IOException {
         TrecLiveQaDemoServer server =
                         new TrecLiveQaDemoServer(args.length == 0 ? DEFAULT_PORT : Integer.parseInt(args[0]));
+        configure(server);
+        String warmUpFile = System.getProperty(WARMUP_FILE_PROPERTY, DEFAULT_WARMUP_FILE);
+        if (!warmUpFile.isEmpty()) {
+            try {
+                server.warmUp(parseQuestions(new String(Files.readAllBytes(Paths.get(warmUpFile)), WORKING_CHARSET)));
+            } catch (IOException | IllegalArgumentException e) {
+                logger.warning("Skipping warm-up, could not read " + warmUpFile + ": " + e.getMessage());
+            }
+        }
         server.start();
         System.in.read();
         server.stop();
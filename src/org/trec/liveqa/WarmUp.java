@@ -0,0 +1,121 @@
+package org.trec.liveqa;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Replays questions through a server's whole request path, in process, in rounds until the median latency of a
+ * round stops improving, so that class loading, JIT compilation and cold caches are paid for before the server
+ * takes real questions. Reports the latencies of the first and the last round.
+ *
+ */
+public class WarmUp {
+
+    public static final int DEFAULT_MAX_ROUNDS = 30;
+    public static final long DEFAULT_MAX_MILLIS = 60000;
+    /**
+     * Latency is stable once the median of a round is within this fraction of the previous round's.
+     */
+    public static final double DEFAULT_TOLERANCE = 0.1;
+    private static final int MIN_ROUNDS = 3;
+
+    private static final Logger logger = Logger.getLogger(WarmUp.class.getName());
+
+    private final TrecLiveQaDemoServer server;
+    private final int maxRounds;
+    private final long maxMillis;
+    private final double tolerance;
+
+    public WarmUp(TrecLiveQaDemoServer server) {
+        this(server, DEFAULT_MAX_ROUNDS, DEFAULT_MAX_MILLIS, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param server the server, not started yet
+     * @param maxRounds rounds replayed at most
+     * @param maxMillis time after which no further request is replayed
+     * @param tolerance see {@link #DEFAULT_TOLERANCE}
+     */
+    public WarmUp(TrecLiveQaDemoServer server, int maxRounds, long maxMillis, double tolerance) {
+        this.server = server;
+        this.maxRounds = maxRounds;
+        this.maxMillis = maxMillis;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param questions as arrays of qid, title, body and category, see
+     *            {@link TrecLiveQaDemoServer#parseQuestions(String)}
+     * @return the number of rounds replayed
+     */
+    public int run(List<String[]> questions) throws IOException {
+        if (questions.isEmpty()) {
+            return 0;
+        }
+        List<byte[]> requests = new ArrayList<>(questions.size());
+        for (String[] question : questions) {
+            requests.add(request(question));
+        }
+
+        long start = System.currentTimeMillis();
+        LatencyHistogram first = null;
+        LatencyHistogram last = null;
+        int rounds = 0;
+        boolean timeLeft = true;
+        while (rounds < maxRounds && timeLeft) {
+            LatencyHistogram round = new LatencyHistogram();
+            for (byte[] request : requests) {
+                long requestStart = System.nanoTime();
+                server.replay(request);
+                round.recordNanos(System.nanoTime() - requestStart);
+                timeLeft = System.currentTimeMillis() - start < maxMillis;
+                if (!timeLeft) {
+                    // the round is cut short, but what it measured still counts
+                    break;
+                }
+            }
+            rounds++;
+            if (first == null) {
+                first = round;
+            }
+            boolean stable = last != null && rounds >= MIN_ROUNDS
+                            && Math.abs(round.quantile(0.5) - last.quantile(0.5)) <= tolerance * last.quantile(0.5);
+            last = round;
+            if (stable) {
+                break;
+            }
+        }
+        logger.info("Warm-up replayed " + questions.size() + " questions " + rounds + " times in "
+                        + (System.currentTimeMillis() - start) + " ms; latency median/p99 went from "
+                        + first.quantile(0.5) + "/" + first.quantile(0.99) + " us to " + last.quantile(0.5) + "/"
+                        + last.quantile(0.99) + " us");
+        return rounds;
+    }
+
+    private static byte[] request(String[] question) throws IOException {
+        String form = TrecLiveQaDemoServer.QUESTION_ID_PARAMETER_NAME + "=" + encode(question[0]) + "&"
+                        + TrecLiveQaDemoServer.QUESTION_TITLE_PARAMETER_NAME + "=" + encode(question[1]) + "&"
+                        + TrecLiveQaDemoServer.QUESTION_BODY_PARAMETER_NAME + "=" + encode(question[2]) + "&"
+                        + TrecLiveQaDemoServer.QUESTION_CATEGORY_PARAMETER_NAME + "=" + encode(question[3]);
+        byte[] body = form.getBytes(TrecLiveQaDemoServer.WORKING_CHARSET);
+        String head = "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+                        + "Content-Length: " + body.length + "\r\n\r\n";
+        byte[] header = head.getBytes(TrecLiveQaDemoServer.WORKING_CHARSET);
+        byte[] request = new byte[header.length + body.length];
+        System.arraycopy(header, 0, request, 0, header.length);
+        System.arraycopy(body, 0, request, header.length, body.length);
+        return request;
+    }
+
+    private static String encode(String s) throws IOException {
+        return URLEncoder.encode(s, TrecLiveQaDemoServer.WORKING_CHARSET.name());
+    }
+
+}
@@ -0,0 +1,228 @@
+package org.trec.liveqa;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpClient;
+
+import org.trec.liveqa.GetYAnswersPropertiesFromQid.QuestionDeletedException;
+import org.trec.liveqa.GetYAnswersPropertiesFromQid.RetryableStatusException;
+
+/**
+ * Copyright 2015 Yahoo Inc.<br>
+ * Licensed under the terms of the MIT license. Please see LICENSE file at the root of this project for terms.
+ * <p/>
+ *
+ * Fetches Yahoo Answers pages for many qids at once, over one pooled HTTP client. The number of requests in
+ * flight to a host adapts to what the host sustains (see {@link AimdLimiter}), under an optional fixed rate;
+ * throttled and failed requests are retried after a jittered exponential backoff, and a host that keeps
+ * failing is left alone for a while (see {@link CircuitBreaker}). The results are written in the order of the
+ * qids, as {@link GetYAnswersPropertiesFromQid} always did, and journaled so that an interrupted crawl can be
+ * resumed (see {@link CrawlJournal}); the output of a resumed crawl is keyed by qid, not ordered.
+ *
+ */
+public class YAnswersCrawler {
+
+    /**
+     * Most requests in flight to a host.
+     */
+    public static final int DEFAULT_PARALLELISM = 16;
+    /**
+     * Requests in flight to a host at first.
+     */
+    public static final int INITIAL_PARALLELISM = 2;
+    /**
+     * No fixed rate: the adaptive limit alone sets the pace.
+     */
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 0;
+    public static final int MAX_RETRIES = 5;
+    public static final long BACKOFF_BASE_MILLIS = 500;
+    public static final long BACKOFF_CAP_MILLIS = 60000;
+
+    private final String urlPrefix;
+    private final int parallelism;
+    private final double requestsPerSecond;
+    private final PropertyExtractor extractor;
+    private final PageCache cache;
+    private final HttpClient client;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * @param urlPrefix the page address without the qid, see {@link GetYAnswersPropertiesFromQid#URL_PREFIX}
+     * @param parallelism most pages fetched from a host at the same time
+     * @param requestsPerSecond most requests per second to a host; 0 for no fixed limit
+     * @param extractor the properties to extract from each page
+     * @param cache where the pages are kept, null for none
+     */
+    public YAnswersCrawler(String urlPrefix, int parallelism, double requestsPerSecond, PropertyExtractor extractor,
+                    PageCache cache) {
+        this.urlPrefix = urlPrefix;
+        this.parallelism = parallelism;
+        this.requestsPerSecond = requestsPerSecond;
+        this.extractor = extractor;
+        this.cache = cache;
+        // retried here, with a backoff, rather than right away by the client
+        this.client = GetYAnswersPropertiesFromQid.newClient(parallelism, 0);
+    }
+
+    /**
+     * Fetches the data of all the qids that the journal does not have finished, and writes it, in the order of
+     * the qids, as it comes in. Failed and deleted qids get no record; their outcome is only journaled, and
+     * failed ones are tried again on the next run. Records are appended after those of earlier runs, so a resumed
+     * output is only in order within each run, see {@link CrawlJournal}.
+     */
+    public void crawl(String[] qids, CrawlJournal journal) throws IOException, InterruptedException {
+        crawl(qids, Collections.<String> emptySet(), journal);
+    }
+
+    /**
+     * As {@link #crawl(String[], CrawlJournal)}, but the qids already known to be deleted are journaled as such
+     * without being fetched.
+     */
+    public void crawl(String[] qids, Set<String> deleted, CrawlJournal journal) throws IOException,
+                    InterruptedException {
+        List<String> todo = new ArrayList<>(qids.length);
+        int knownDeleted = 0;
+        for (String qid : qids) {
+            if (journal.isFinished(qid)) {
+                continue;
+            }
+            if (deleted.contains(qid)) {
+                journal.record(qid, CrawlJournal.Status.DELETED);
+                knownDeleted++;
+            } else {
+                todo.add(qid);
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Crawler (#" + count.incrementAndGet() + ")");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        BufferedWriter writer = journal.getWriter();
+        long start = System.currentTimeMillis();
+        int failed = 0;
+        int deletedNow = 0;
+        try {
+            List<Future<Map<String, String>>> results = new ArrayList<>(todo.size());
+            for (final String qid : todo) {
+                results.add(executor.submit(() -> fetch(qid)));
+            }
+            for (int i = 0; i < todo.size(); i++) {
+                String qid = todo.get(i);
+                try {
+                    GetYAnswersPropertiesFromQid.writeRecord(writer, qid, results.get(i).get());
+                    journal.record(qid, CrawlJournal.Status.DONE);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof QuestionDeletedException) {
+                        System.err.println("QID " + qid + " is deleted");
+                        journal.record(qid, CrawlJournal.Status.DELETED);
+                        deletedNow++;
+                    } else {
+                        System.err.println("Failed to get data for QID " + qid + ": " + e.getCause());
+                        journal.record(qid, CrawlJournal.Status.FAILED);
+                        failed++;
+                    }
+                }
+                results.set(i, null);
+            }
+        } finally {
+            executor.shutdownNow();
+            journal.commit();
+        }
+        System.out.println("Crawled " + todo.size() + " QIDs in " + (System.currentTimeMillis() - start) + " ms, "
+                        + failed + " failed, " + deletedNow + " deleted, " + retries.get() + " retries; "
+                        + knownDeleted + " known deleted, skipped " + (qids.length - todo.size() - knownDeleted)
+                        + " finished earlier");
+        for (Map.Entry<String, Host> host : hosts.entrySet()) {
+            System.out.println(host.getKey() + ": concurrency limit " + host.getValue().concurrency.getLimit()
+                            + ", circuit breaker opened " + host.getValue().breaker.getOpened() + " times");
+        }
+    }
+
+    /**
+     * Fetches the data of one qid, retrying while the host throttles or fails.
+     */
+    public Map<String, String> fetch(String qid) throws Exception {
+        String url = urlPrefix + qid;
+        Host host = host(new URL(url).getHost());
+        for (int attempt = 0;; attempt++) {
+            host.breaker.acquire();
+            host.concurrency.acquire();
+            try {
+                host.rate.acquire();
+                long start = System.nanoTime();
+                System.out.println("Getting data for QID " + qid);
+                Map<String, String> data = GetYAnswersPropertiesFromQid.extractData(client, urlPrefix, qid, extractor, cache);
+                host.concurrency.onSuccess(System.nanoTime() - start);
+                host.breaker.onSuccess();
+                return data;
+            } catch (QuestionDeletedException | PageCache.NotCachedException e) {
+                host.concurrency.onIgnore();
+                host.breaker.onSuccess();
+                throw e;
+            } catch (IOException e) {
+                host.concurrency.onOverload();
+                host.breaker.onFailure();
+                if (attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                long delay = backoffMillis(attempt);
+                if (e instanceof RetryableStatusException) {
+                    delay = Math.max(delay, ((RetryableStatusException) e).getRetryAfterMillis());
+                }
+                Thread.sleep(delay);
+            } catch (Exception e) {
+                // a malformed qid, not the host's doing
+                host.concurrency.onIgnore();
+                host.breaker.onSuccess();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * "Full jitter": a random delay up to an exponentially growing bound, so that the requests throttled
+     * together do not come back together.
+     */
+    static long backoffMillis(int attempt) {
+        long bound = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    private Host host(String name) {
+        return hosts.computeIfAbsent(name, h -> new Host());
+    }
+
+    /**
+     * The request controls of one host.
+     */
+    private class Host {
+        final RateLimiter rate = new RateLimiter(requestsPerSecond);
+        final AimdLimiter concurrency = new AimdLimiter(INITIAL_PARALLELISM, 1, parallelism);
+        final CircuitBreaker breaker = new CircuitBreaker();
+    }
+
+}
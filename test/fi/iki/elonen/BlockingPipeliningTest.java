@@ -0,0 +1,64 @@
+package fi.iki.elonen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Pipelining on the thread-per-connection engine.
+ */
+public class BlockingPipeliningTest extends PipeliningTestBase {
+
+    @Override
+    protected void configure(NanoHTTPD server) {
+        server.setSelectorThreads(0);
+    }
+
+    @Test
+    public void callerRunsServesOneRequestThenCloses() throws IOException {
+        server.stop();
+        server.setAsyncRunner(new NanoHTTPD.BoundedAsyncRunner(1, 0,
+                        NanoHTTPD.BoundedAsyncRunner.RejectionPolicy.CALLER_RUNS));
+        server.start();
+        // a keep-alive connection holds the only worker
+        Socket held = new Socket("localhost", server.getListeningPort());
+        Socket rejected = null;
+        try {
+            held.setSoTimeout(10000);
+            held.getOutputStream().write(get("/held").getBytes(StandardCharsets.US_ASCII));
+            InputStream heldIn = held.getInputStream();
+            String status = readLine(heldIn);
+            assertTrue(status, status.startsWith("HTTP/1.1 200 "));
+
+            rejected = new Socket("localhost", server.getListeningPort());
+            rejected.setSoTimeout(10000);
+            rejected.getOutputStream().write((get("/first") + get("/second")).getBytes(StandardCharsets.US_ASCII));
+            InputStream in = rejected.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            for (int b = in.read(); b != -1; b = in.read()) {
+                response.write(b);
+            }
+            String text = new String(response.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(text, text.startsWith("HTTP/1.1 200 "));
+            assertTrue(text, text.contains("Connection: close\r\n"));
+            assertTrue(text, text.endsWith("GET /first []"));
+            assertFalse(text, text.contains("/second"));
+        } finally {
+            held.close();
+            if (rejected != null) {
+                rejected.close();
+            }
+        }
+        // the listener is free again
+        assertEquals(list("GET /after []"), exchange(split(get("/after"), 0), 1));
+    }
+
+}
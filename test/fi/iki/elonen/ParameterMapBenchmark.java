@@ -0,0 +1,118 @@
+package fi.iki.elonen;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Throughput of {@link NanoHTTPD.ParameterMap} against the <code>decodeParms</code> it replaced, on LiveQA
+ * question posts: each decodes a form and reads the four parameters the server uses.
+ * <p/>
+ * Run with <code>java fi.iki.elonen.ParameterMapBenchmark [seconds-per-run]</code>.
+ */
+public class ParameterMapBenchmark {
+
+    private static final String[] READ = {"qid", "title", "body", "category"};
+
+    public static void main(String[] args) throws Exception {
+        long millis = (long) (1000 * (args.length > 0 ? Double.parseDouble(args[0]) : 2));
+        for (int bodyChars : new int[] {200, 2000, 20000}) {
+            byte[] form = form(bodyChars);
+            // warm up both, then measure
+            for (int run = 0; run < 3; run++) {
+                boolean measure = run == 2;
+                double old = run(true, form, measure ? millis : millis / 2);
+                double now = run(false, form, measure ? millis : millis / 2);
+                if (measure) {
+                    System.out.printf("%6d byte form: decodeParms %8.0f ns, ParameterMap %8.0f ns (%.1fx)%n",
+                                    form.length, old, now, old / now);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return average nanoseconds per form
+     */
+    private static double run(boolean old, byte[] form, long millis) throws Exception {
+        NanoHTTPD.ParameterMap parms = new NanoHTTPD.ParameterMap();
+        long sink = 0;
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1000000;
+        long now;
+        do {
+            for (int i = 0; i < 100; i++) {
+                Map<String, String> decoded;
+                if (old) {
+                    decoded = new HashMap<String, String>();
+                    decodeParms(new String(form, 0, form.length, StandardCharsets.UTF_8), decoded);
+                } else {
+                    parms.clear();
+                    parms.addForm(form, 0, form.length);
+                    decoded = parms;
+                }
+                for (String name : READ) {
+                    sink += decoded.get(name).length();
+                }
+            }
+            count += 100;
+            now = System.nanoTime();
+        } while (now < end);
+        if (sink == 42) {
+            System.out.println();
+        }
+        return (double) (now - start) / count;
+    }
+
+    /**
+     * A question form as the LiveQA server receives it, plus the fields it ignores.
+     */
+    private static byte[] form(int bodyChars) throws UnsupportedEncodingException {
+        StringBuilder body = new StringBuilder();
+        String[] words = {"how", "do", "I", "fix", "my", "caf\u00e9's", "espresso", "machine?", "it", "leaks", "&",
+            "makes", "noise", "(50%", "of", "the", "time)"};
+        for (int i = 0; body.length() < bodyChars; i++) {
+            body.append(words[i % words.length]).append(' ');
+        }
+        String form = "qid=" + encode("20150421190132AAYSNc3") + "&title="
+                        + encode("Why does my espresso machine leak water at the bottom?") + "&body="
+                        + encode(body.toString()) + "&category=" + encode("Home & Garden") + "&source=" + encode("trec")
+                        + "&rank=1&session=" + encode("a1b2c3d4e5");
+        return form.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+    /**
+     * The decoder replaced by {@link NanoHTTPD.ParameterMap}, as it was.
+     */
+    private static void decodeParms(String parms, Map<String, String> p) {
+        StringTokenizer st = new StringTokenizer(parms, "&");
+        while (st.hasMoreTokens()) {
+            String e = st.nextToken();
+            int sep = e.indexOf('=');
+            if (sep >= 0) {
+                p.put(decodePercent(e.substring(0, sep)).trim(), decodePercent(e.substring(sep + 1)));
+            } else {
+                p.put(decodePercent(e).trim(), "");
+            }
+        }
+    }
+
+    private static String decodePercent(String str) {
+        String decoded = null;
+        try {
+            decoded = URLDecoder.decode(str, "UTF8");
+        } catch (UnsupportedEncodingException ignored) {
+        }
+        return decoded;
+    }
+
+}
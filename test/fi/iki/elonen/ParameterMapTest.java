@@ -0,0 +1,131 @@
+package fi.iki.elonen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Decoding of urlencoded parameters by {@link NanoHTTPD.ParameterMap}.
+ */
+public class ParameterMapTest {
+
+    private static NanoHTTPD.ParameterMap decode(String form) {
+        NanoHTTPD.ParameterMap parms = new NanoHTTPD.ParameterMap();
+        byte[] bytes = form.getBytes(StandardCharsets.UTF_8);
+        parms.addForm(bytes, 0, bytes.length);
+        return parms;
+    }
+
+    @Test
+    public void plusIsSpace() {
+        assertEquals("who is there", decode("q=who+is+there").get("q"));
+        assertEquals("a b", decode("a+b=1").keySet().iterator().next());
+    }
+
+    @Test
+    public void percentEscapesAreUtf8() {
+        NanoHTTPD.ParameterMap parms = decode("title=caf%C3%A9%20au%20lait&amp=%26%3D%2B&upper=%c3%a9");
+        assertEquals("caf\u00e9 au lait", parms.get("title"));
+        assertEquals("&=+", parms.get("amp"));
+        assertEquals("\u00e9", parms.get("upper"));
+    }
+
+    @Test
+    public void malformedPercentIsKept() {
+        NanoHTTPD.ParameterMap parms = decode("a=100%&b=%zz1&c=%4&d=%%41");
+        assertEquals("100%", parms.get("a"));
+        assertEquals("%zz1", parms.get("b"));
+        assertEquals("%4", parms.get("c"));
+        assertEquals("%A", parms.get("d"));
+    }
+
+    @Test
+    public void lastDuplicateWins() {
+        NanoHTTPD.ParameterMap parms = decode("qid=1&qid=2&x=y&qid=3");
+        assertEquals("3", parms.get("qid"));
+        assertEquals(2, parms.size());
+        // a later form, such as the body after the query string, overrides too
+        byte[] body = "qid=4&x".getBytes(StandardCharsets.UTF_8);
+        parms.addForm(body, 0, body.length);
+        assertEquals("4", parms.get("qid"));
+        assertEquals("", parms.get("x"));
+    }
+
+    @Test
+    public void emptyValuesAndNames() {
+        NanoHTTPD.ParameterMap parms = decode("a=&b&&=c&d=e");
+        assertEquals("", parms.get("a"));
+        assertEquals("", parms.get("b"));
+        assertEquals("c", parms.get(""));
+        assertEquals("e", parms.get("d"));
+        assertEquals(4, parms.size());
+        assertTrue(parms.containsKey("a"));
+        assertFalse(parms.containsKey("z"));
+        assertNull(parms.get("z"));
+    }
+
+    @Test
+    public void mapOperations() {
+        NanoHTTPD.ParameterMap parms = decode("a=1&b=2");
+        assertEquals("1", parms.put("a", "x"));
+        assertEquals("2", parms.remove("b"));
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("a", "x");
+        assertEquals(expected, new HashMap<String, String>(parms));
+        parms.clear();
+        assertTrue(parms.isEmpty());
+    }
+
+    @Test
+    public void readsFromManyThreads() throws Exception {
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            form.append("p").append(i).append("=value+").append(i).append("%21&");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 50; round++) {
+                final NanoHTTPD.ParameterMap parms = decode(form.toString());
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+                for (int t = 0; t < 8; t++) {
+                    results.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            start.await();
+                            int wrong = 0;
+                            for (int i = 0; i < 200; i++) {
+                                if (!("value " + i + "!").equals(parms.get("p" + i))) {
+                                    wrong++;
+                                }
+                            }
+                            return wrong;
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<Integer> result : results) {
+                    assertEquals(0, (int) result.get());
+                }
+                assertEquals(200, parms.size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+package fi.iki.elonen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pipelined requests over a real socket: the responses come back in request order, whether the bodies are
+ * framed by a content-length or absent, and however the requests are split across reads. Subclasses pick the
+ * connection engine.
+ */
+public abstract class PipeliningTestBase {
+
+    protected NanoHTTPD server;
+
+    /**
+     * Selects the engine of the server, before it starts.
+     */
+    protected abstract void configure(NanoHTTPD server);
+
+    /**
+     * Answers with the method, URI and body of the request.
+     */
+    private static class EchoServer extends NanoHTTPD {
+
+        EchoServer() {
+            super("localhost", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            Map<String, String> files = new HashMap<String, String>();
+            try {
+                session.parseBody(files);
+            } catch (Exception e) {
+                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.toString());
+            }
+            String body = files.containsKey("postData") ? files.get("postData") : "";
+            return new Response(session.getMethod() + " " + session.getUri() + " [" + body + "]");
+        }
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        configure(server);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void responsesComeInRequestOrder() throws IOException {
+        StringBuilder requests = new StringBuilder();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            requests.append(get("/q" + i));
+            expected.add("GET /q" + i + " []");
+        }
+        assertEquals(expected, exchange(split(requests.toString(), 0), 20));
+    }
+
+    @Test
+    public void bodiesWithContentLength() throws IOException {
+        String requests = post("/a", "first body") + get("/b") + post("/c", "x") + post("/d", "last");
+        assertEquals(list("POST /a [first body]", "GET /b []", "POST /c [x]", "POST /d [last]"),
+                        exchange(split(requests, 0), 4));
+    }
+
+    @Test
+    public void contentLengthWithSpaceBeforeColon() throws IOException {
+        String requests = "POST /a HTTP/1.1\r\nHost: localhost\r\nContent-Length : 5\r\n\r\nhello" + get("/b");
+        assertEquals(list("POST /a [hello]", "GET /b []"), exchange(split(requests, 0), 2));
+    }
+
+    @Test
+    public void bodiesWithoutContentLength() throws IOException {
+        // without a content-length, what follows the header is the next request
+        String requests = "POST /a HTTP/1.1\r\nHost: localhost\r\n\r\n" + get("/b")
+                        + "POST /c HTTP/1.1\r\nHost: localhost\r\n\r\n" + post("/d", "body");
+        assertEquals(list("POST /a []", "GET /b []", "POST /c []", "POST /d [body]"), exchange(split(requests, 0), 4));
+    }
+
+    @Test
+    public void requestsSplitAcrossReads() throws IOException {
+        String requests = post("/a", "a body that arrives in pieces") + get("/b") + post("/c", "c");
+        List<String> expected = list("POST /a [a body that arrives in pieces]", "GET /b []", "POST /c [c]");
+        // in the request line, in a header, between header and body, inside the body
+        for (int piece : new int[] {3, 17, 41, 50}) {
+            assertEquals("pieces of " + piece, expected, exchange(split(requests, piece), 3));
+        }
+    }
+
+    @Test
+    public void requestsSentByteByByte() throws IOException {
+        String requests = post("/a", "abc") + get("/b");
+        assertEquals(list("POST /a [abc]", "GET /b []"), exchange(split(requests, 1), 2));
+    }
+
+    @Test
+    public void largeBodyThenSmallRequest() throws IOException {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 200000) {
+            body.append("a large body, ").append(body.length()).append('\n');
+        }
+        // the raw body is trimmed
+        body.append("end");
+        String requests = post("/big", body.toString()) + get("/after");
+        assertEquals(list("POST /big [" + body + "]", "GET /after []"), exchange(split(requests, 4096), 2));
+    }
+
+    protected static String get(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    private static String post(String uri, String body) {
+        return "POST " + uri + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: "
+                        + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+    }
+
+    protected static List<String> list(String... items) {
+        List<String> list = new ArrayList<String>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    /**
+     * @param piece bytes per write, 0 for all at once
+     */
+    protected static List<byte[]> split(String requests, int piece) {
+        byte[] bytes = requests.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> writes = new ArrayList<byte[]>();
+        if (piece == 0) {
+            writes.add(bytes);
+            return writes;
+        }
+        for (int i = 0; i < bytes.length; i += piece) {
+            byte[] write = new byte[Math.min(piece, bytes.length - i)];
+            System.arraycopy(bytes, i, write, 0, write.length);
+            writes.add(write);
+        }
+        return writes;
+    }
+
+    /**
+     * Sends the writes on one connection, pausing between them so that the server sees separate reads, then
+     * reads the bodies of the given number of responses.
+     */
+    protected List<String> exchange(List<byte[]> writes, int responses) throws IOException {
+        Socket socket = new Socket("localhost", server.getListeningPort());
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < writes.size(); i++) {
+                out.write(writes.get(i));
+                out.flush();
+                if (writes.size() > 1 && i % 8 == 0) {
+                    pause();
+                }
+            }
+            InputStream in = socket.getInputStream();
+            List<String> bodies = new ArrayList<String>();
+            for (int i = 0; i < responses; i++) {
+                bodies.add(readResponse(in));
+            }
+            return bodies;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the body of the next response, which must be a 200
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        String status = readLine(in);
+        assertTrue(status, status.startsWith("HTTP/1.1 200 "));
+        long length = -1;
+        boolean chunked = false;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("content-length")) {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("transfer-encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            for (int size = Integer.parseInt(readLine(in).trim(), 16); size > 0;
+                            size = Integer.parseInt(readLine(in).trim(), 16)) {
+                readFully(in, body, size);
+                readLine(in);
+            }
+            readLine(in);
+        } else {
+            readFully(in, body, length);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(InputStream in, ByteArrayOutputStream to, long length) throws IOException {
+        for (long i = 0; i < length; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Response cut short");
+            }
+            to.write(b);
+        }
+    }
+
+    protected static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new IOException("Connection closed after \"" + line + "\"");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+}
@@ -0,0 +1,45 @@
+package fi.iki.elonen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Pipelining on the non-blocking selector engine.
+ */
+public class SelectorPipeliningTest extends PipeliningTestBase {
+
+    @Override
+    protected void configure(NanoHTTPD server) {
+        server.setSelectorThreads(2);
+    }
+
+    @Test
+    public void oversizedRequestIsRefusedAndTheLoopLivesOn() throws IOException {
+        Socket socket = new Socket("localhost", server.getListeningPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(("POST /huge HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2000000000\r\n"
+                            + "\r\nthe start of the body").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            String status = readLine(in);
+            assertTrue(status, status.startsWith("HTTP/1.1 413 "));
+            while (in.read() != -1) {
+                // the rest of the response, then the server closes the connection
+            }
+        } finally {
+            socket.close();
+        }
+        // every connection lands on a loop that is still running
+        for (int i = 0; i < 4; i++) {
+            assertEquals(list("GET /after" + i + " []"), exchange(split(get("/after" + i), 0), 1));
+        }
+    }
+
+}
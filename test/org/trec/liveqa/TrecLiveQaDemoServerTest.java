@@ -0,0 +1,114 @@
+package org.trec.liveqa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Subclasses that override <code>serve(IHTTPSession)</code> keep getting the requests, on both engines.
+ */
+public class TrecLiveQaDemoServerTest {
+
+    private TrecLiveQaDemoServer server;
+
+    /**
+     * Answers everything itself.
+     */
+    private static class CustomServer extends TrecLiveQaDemoServer {
+
+        CustomServer() {
+            super("localhost", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return new Response("custom " + session.getUri());
+        }
+    }
+
+    /**
+     * Handles one path itself and leaves the questions to the base server.
+     */
+    private static class DelegatingServer extends TrecLiveQaDemoServer {
+
+        DelegatingServer() {
+            super("localhost", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            if ("/ping".equals(session.getUri())) {
+                return new Response("pong");
+            }
+            return super.serve(session);
+        }
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void start(TrecLiveQaDemoServer server, int selectorThreads) throws IOException {
+        this.server = server;
+        server.setSelectorThreads(selectorThreads);
+        server.setRequestLog(null);
+        server.start();
+    }
+
+    @Test
+    public void overriddenServeTakesTheRequestsOnTheBlockingEngine() throws IOException {
+        start(new CustomServer(), 0);
+        assertEquals("custom /anything", request("/anything", null));
+    }
+
+    @Test
+    public void overriddenServeTakesTheRequestsOnTheSelectorEngine() throws IOException {
+        start(new CustomServer(), 1);
+        assertEquals("custom /anything", request("/anything", null));
+    }
+
+    @Test
+    public void overriddenServeCanDelegateToTheBaseServer() throws IOException {
+        start(new DelegatingServer(), 1);
+        assertEquals("pong", request("/ping", null));
+        String answer = request("/", "qid=20150421190132AA001&title=a+title&body=a+body&category=Cat");
+        assertTrue(answer, answer.contains("qid=\"20150421190132AA001\""));
+        assertTrue(answer, answer.contains("answered=\"yes\""));
+    }
+
+    private String request(String path, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getListeningPort()
+                        + path).openConnection();
+        connection.setReadTimeout(10000);
+        if (form != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(form.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(200, connection.getResponseCode());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1;) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
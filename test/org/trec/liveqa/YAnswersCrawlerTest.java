@@ -0,0 +1,353 @@
+package org.trec.liveqa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Crawls from a local stub of the question pages: the records come out in qid order, a host's rate limit holds,
+ * throttled and failing requests are retried, and missing questions are journaled as deleted.
+ */
+public class YAnswersCrawlerTest {
+
+    private static final int QIDS = 12;
+    private static final String PAGE_TAG = "\"v1\"";
+
+    /**
+     * Serves a question page for every qid, unless the test answers otherwise; records the requests.
+     */
+    private static class StubServer extends NanoHTTPD {
+
+        final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+        final List<Long> arrivals = Collections.synchronizedList(new ArrayList<Long>());
+        /** answers the qid's nth request, or returns null to serve the page */
+        volatile BiFunction<String, Integer, Response> answer = (qid, n) -> null;
+        /** milliseconds the qid's page takes */
+        volatile Map<String, Integer> delays = new ConcurrentHashMap<>();
+        /** whether pages come with an ETag, and are not sent again to a client that has them */
+        volatile boolean eTags;
+
+        StubServer() {
+            super("localhost", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            arrivals.add(System.nanoTime());
+            String qid = session.getParms().get("qid");
+            int n = requests.computeIfAbsent(qid, q -> new AtomicInteger()).incrementAndGet();
+            Response response = answer.apply(qid, n);
+            if (response != null) {
+                return response;
+            }
+            if (eTags && PAGE_TAG.equals(session.getHeaders().get("if-none-match"))) {
+                return new Response(Response.Status.NOT_MODIFIED, MIME_HTML, "");
+            }
+            Integer delay = delays.get(qid);
+            if (delay != null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Response page = new Response(Response.Status.OK, MIME_HTML, "<html><head><meta name=\"title\" "
+                            + "content=\"Title " + qid + "\"><meta name=\"description\" content=\"Body " + qid
+                            + "\"></head><body><a class=\"Clr-b\">Category</a></body></html>");
+            if (eTags) {
+                page.addHeader("ETag", PAGE_TAG);
+            }
+            return page;
+        }
+
+        int requests(String qid) {
+            AtomicInteger n = requests.get(qid);
+            return n == null ? 0 : n.get();
+        }
+    }
+
+    private StubServer server;
+    private File output;
+    private List<String> qids;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.start();
+        output = File.createTempFile("crawl", ".txt");
+        qids = new ArrayList<>();
+        for (int i = 0; i < QIDS; i++) {
+            // the first 14 characters are the date of the question
+            qids.add(String.format("20150421190132AA%03d", i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        output.delete();
+        new File(output.getPath() + CrawlJournal.JOURNAL_SUFFIX).delete();
+    }
+
+    private CrawlJournal crawl(int parallelism, double requestsPerSecond) throws Exception {
+        return crawl(parallelism, requestsPerSecond, null);
+    }
+
+    private CrawlJournal crawl(int parallelism, double requestsPerSecond, PageCache cache) throws Exception {
+        return crawl(parallelism, requestsPerSecond, cache, Collections.<String> emptySet());
+    }
+
+    private CrawlJournal crawl(int parallelism, double requestsPerSecond, PageCache cache, Set<String> deleted)
+                    throws Exception {
+        YAnswersCrawler crawler = new YAnswersCrawler("http://localhost:" + server.getListeningPort()
+                        + "/question/index?qid=", parallelism, requestsPerSecond,
+                        GetYAnswersPropertiesFromQid.EXTRACTOR, cache);
+        CrawlJournal journal = new CrawlJournal(output);
+        try {
+            crawler.crawl(qids.toArray(new String[qids.size()]), deleted, journal);
+        } finally {
+            journal.close();
+        }
+        // reopened, to see what was committed
+        return new CrawlJournal(output);
+    }
+
+    /**
+     * @return the records of the output, by qid, in the order they were written
+     */
+    private Map<String, Map<String, String>> records() throws IOException {
+        Map<String, Map<String, String>> records = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(output),
+                        StandardCharsets.UTF_8))) {
+            Map<String, String> record = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    record = null;
+                } else if (record == null) {
+                    assertTrue(line, line.endsWith(":"));
+                    record = new LinkedHashMap<>();
+                    records.put(line.substring(0, line.length() - 1), record);
+                } else {
+                    String[] kv = line.split("\t", 2);
+                    record.put(kv[0], kv[1]);
+                }
+            }
+        }
+        return records;
+    }
+
+    @Test(timeout = 30000)
+    public void recordsComeOutInQidOrder() throws Exception {
+        Map<String, Integer> delays = new ConcurrentHashMap<>();
+        for (int i = 0; i < QIDS; i++) {
+            // the later qids are done first
+            delays.put(qids.get(i), (QIDS - i) * 10);
+        }
+        server.delays = delays;
+        try (CrawlJournal journal = crawl(8, 0)) {
+            assertEquals(QIDS, journal.count(CrawlJournal.Status.DONE));
+        }
+        Map<String, Map<String, String>> records = records();
+        assertEquals(qids, new ArrayList<>(records.keySet()));
+        for (String qid : qids) {
+            Map<String, String> record = records.get(qid);
+            assertEquals("Title " + qid, record.get("Title"));
+            assertEquals("Body " + qid, record.get("Body"));
+            assertEquals("Category", record.get("Top level Category"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void rateLimitHolds() throws Exception {
+        double requestsPerSecond = 20;
+        try (CrawlJournal journal = crawl(8, requestsPerSecond)) {
+            assertEquals(QIDS, journal.count(CrawlJournal.Status.DONE));
+        }
+        List<Long> arrivals = new ArrayList<>(server.arrivals);
+        Collections.sort(arrivals);
+        assertEquals(QIDS, arrivals.size());
+        // evenly spaced permits: the first right away, then one per interval; a little slack for the clocks
+        long minimumNanos = (long) ((QIDS - 1) / requestsPerSecond * 1e9 * 0.9);
+        long spanNanos = arrivals.get(arrivals.size() - 1) - arrivals.get(0);
+        assertTrue(spanNanos / 1000000 + " ms", spanNanos >= minimumNanos);
+    }
+
+    @Test(timeout = 30000)
+    public void throttledAndFailedRequestsAreRetried() throws Exception {
+        server.answer = (qid, n) -> {
+            if (n > 1) {
+                return null;
+            }
+            switch (qid.charAt(qid.length() - 1)) {
+            case '1':
+                Response tooMany = new Response(new StubStatus(429, "Too Many Requests"), NanoHTTPD.MIME_PLAINTEXT,
+                                "slow down");
+                tooMany.addHeader("Retry-After", "0");
+                return tooMany;
+            case '4':
+                return new Response(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "oops");
+            case '7':
+                return new Response(new StubStatus(503, "Service Unavailable"), NanoHTTPD.MIME_PLAINTEXT, "busy");
+            default:
+                return null;
+            }
+        };
+        try (CrawlJournal journal = crawl(4, 0)) {
+            assertEquals(QIDS, journal.count(CrawlJournal.Status.DONE));
+            assertEquals(0, journal.count(CrawlJournal.Status.FAILED));
+        }
+        for (String qid : qids) {
+            char last = qid.charAt(qid.length() - 1);
+            assertEquals(qid, last == '1' || last == '4' || last == '7' ? 2 : 1, server.requests(qid));
+        }
+        assertEquals(qids, new ArrayList<>(records().keySet()));
+    }
+
+    @Test(timeout = 30000)
+    public void missingQuestionsAreDeleted() throws Exception {
+        final String notFound = qids.get(3);
+        final String gone = qids.get(8);
+        server.answer = (qid, n) -> {
+            if (qid.equals(notFound)) {
+                return new Response(Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "no such question");
+            }
+            if (qid.equals(gone)) {
+                return new Response(new StubStatus(410, "Gone"), NanoHTTPD.MIME_PLAINTEXT, "deleted");
+            }
+            return null;
+        };
+        try (CrawlJournal journal = crawl(4, 0)) {
+            assertEquals(2, journal.count(CrawlJournal.Status.DELETED));
+            assertEquals(QIDS - 2, journal.count(CrawlJournal.Status.DONE));
+            assertTrue(journal.isFinished(notFound));
+            assertTrue(journal.isFinished(gone));
+        }
+        // not retried, and without a record
+        assertEquals(1, server.requests(notFound));
+        assertEquals(1, server.requests(gone));
+        List<String> done = new ArrayList<>(qids);
+        done.remove(notFound);
+        done.remove(gone);
+        assertEquals(done, new ArrayList<>(records().keySet()));
+    }
+
+    @Test(timeout = 30000)
+    public void missingCachedPagesAreFetchedAgain() throws Exception {
+        server.eTags = true;
+        File dir = Files.createTempDirectory("pages").toFile();
+        try {
+            try (PageCache cache = new PageCache(dir, false); CrawlJournal journal = crawl(4, 0, cache)) {
+                assertEquals(QIDS, journal.count(CrawlJournal.Status.DONE));
+            }
+            // the index still has the pages, with their ETags, but their files are gone
+            delete(new File(dir, "pages"));
+            // a new crawl
+            new File(output.getPath() + CrawlJournal.JOURNAL_SUFFIX).delete();
+            server.requests.clear();
+            try (PageCache cache = new PageCache(dir, false); CrawlJournal journal = crawl(4, 0, cache)) {
+                assertEquals(QIDS, journal.count(CrawlJournal.Status.DONE));
+            }
+            // a 304, then the page in full
+            for (String qid : qids) {
+                assertEquals(qid, 2, server.requests(qid));
+            }
+            assertEquals("Title " + qids.get(0), records().get(qids.get(0)).get("Title"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void qidFilesMarkDeletedQuestions() throws Exception {
+        // as data/2015/13k-dry-run-qids.txt: each qid followed by a tab, and by "Deleted" if it is
+        StringBuilder lines = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < QIDS; i++) {
+            boolean deleted = i % 3 == 0;
+            lines.append(qids.get(i)).append(deleted ? "\tDeleted\n" : "\t\n");
+            if (!deleted) {
+                expected.add(qids.get(i));
+            }
+        }
+        File qidFile = File.createTempFile("qids", ".txt");
+        try {
+            Files.write(qidFile.toPath(), lines.toString().getBytes(StandardCharsets.US_ASCII));
+            Set<String> deleted = new HashSet<>();
+            assertEquals(qids, Arrays.asList(GetYAnswersPropertiesFromQid.getQids(qidFile.getPath(), deleted)));
+            assertEquals(QIDS - expected.size(), deleted.size());
+
+            try (CrawlJournal journal = crawl(4, 0, null, deleted)) {
+                assertEquals(deleted.size(), journal.count(CrawlJournal.Status.DELETED));
+                assertEquals(expected.size(), journal.count(CrawlJournal.Status.DONE));
+            }
+            // the deleted ones are not even asked for
+            for (String qid : qids) {
+                assertEquals(qid, deleted.contains(qid) ? 0 : 1, server.requests(qid));
+            }
+            assertEquals(expected, new ArrayList<>(records().keySet()));
+        } finally {
+            qidFile.delete();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A status that {@link Response.Status} lacks.
+     */
+    private static class StubStatus implements Response.IStatus {
+
+        private final int status;
+        private final String description;
+
+        StubStatus(int status, String description) {
+            this.status = status;
+            this.description = description;
+        }
+
+        @Override
+        public int getRequestStatus() {
+            return status;
+        }
+
+        @Override
+        public String getDescription() {
+            return status + " " + description;
+        }
+    }
+
+}